@@ -0,0 +1,77 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.utils.TokenBucket;
+
+import java.util.HashMap;
+
+/**
+ * Shares bandwidth out between the sessions. Reads from origins go through a bucket for the
+ * session, one for the origin and a global one. Writes to clients go through a bucket for the
+ * session and a global one. Prefetches and prefetch jobs aren't sessions, their reads only go
+ * through the origin and global buckets.
+ *
+ * A session whose client is waiting for data can borrow from the origin and global buckets past
+ * its own limit, as long as they have capacity to spare.
+ *
+ * @author conorhunt
+ *
+ */
+public class BandwidthShaper
+{
+    private long sessionRate = 0;
+    private long originRate = 0;
+
+    private TokenBucket globalRead = null;
+    private TokenBucket globalWrite = null;
+    private HashMap<String, TokenBucket> originBuckets = new HashMap<String, TokenBucket>();
+
+    /**
+     * All rates are in bytes per second, 0 means no limit
+     *
+     * @param globalRate limit on all of the reads from origins and separately on all of the writes to clients
+     * @param originRate limit on the reads from each origin
+     * @param sessionRate limit on the reads and the writes of each session
+     */
+    public BandwidthShaper(long globalRate, long originRate, long sessionRate)
+    {
+        this.originRate = originRate;
+        this.sessionRate = sessionRate;
+        this.globalRead = new TokenBucket(globalRate, null);
+        this.globalWrite = new TokenBucket(globalRate, null);
+    }
+
+    /**
+     * @param origin host:port
+     * @return a bucket for a new session's reads from the origin
+     */
+    public TokenBucket newReadBucket(String origin)
+    {
+        return new TokenBucket(sessionRate, getOriginBucket(origin));
+    }
+
+    /**
+     * @param origin host:port
+     * @return the bucket for all of the reads from the origin, under the global one
+     */
+    public TokenBucket getOriginBucket(String origin)
+    {
+        synchronized (originBuckets)
+        {
+            TokenBucket originBucket = originBuckets.get(origin);
+            if (originBucket == null)
+            {
+                originBucket = new TokenBucket(originRate, globalRead);
+                originBuckets.put(origin, originBucket);
+            }
+            return originBucket;
+        }
+    }
+
+    /**
+     * @return a bucket for a new session's writes to its client
+     */
+    public TokenBucket newWriteBucket()
+    {
+        return new TokenBucket(sessionRate, globalWrite);
+    }
+}
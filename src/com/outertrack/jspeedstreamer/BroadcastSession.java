@@ -0,0 +1,109 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.http.HttpResponse;
+import com.outertrack.jspeedstreamer.utils.BroadcastBuffer;
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+
+import java.util.HashMap;
+
+/**
+ * A split download that other clients asking for the same URL can join, so that one set of origin
+ * connections feeds all of them. The ProxyThread that starts the download manages it, the clients
+ * each read from the shared BroadcastBuffer at their own pace.
+ *
+ * A client can join at the slowest reader's position if the response had no Content-Length (the
+ * client just gets the stream from there, as with a live stream). Otherwise it can only join while
+ * the start of the stream is still in the buffer.
+ *
+ * @author conorhunt
+ *
+ */
+public class BroadcastSession
+{
+    private static MultiLogger log = MultiLogger.getLogger(BroadcastSession.class);
+
+    // Sessions that can be joined, by URL
+    private static HashMap<String, BroadcastSession> sessions = new HashMap<String, BroadcastSession>();
+
+    private String url = null;
+    private byte[] responseBytes = null;
+    private boolean lengthInHeaders = false;
+    private long contentLength = -1;
+    private BroadcastBuffer buffer = null;
+
+    private BroadcastSession(String url, HttpResponse response, long contentLength, BroadcastBuffer buffer)
+    {
+        this.url = url;
+        this.responseBytes = response.getResponseBytes();
+        this.lengthInHeaders = response.getHeader("content-length") != null;
+        this.contentLength = contentLength;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Start a session for a URL
+     *
+     * @param url
+     * @param response response to the first client's request, sent to every client that joins
+     * @param contentLength
+     * @param bufferSize
+     * @param maxLag how far a client can fall behind the fastest one before it is detached
+     * @return the session, or null if there already is one for the URL
+     */
+    public static synchronized BroadcastSession start(String url, HttpResponse response, long contentLength, int bufferSize, long maxLag)
+    {
+        if (sessions.containsKey(url)) return null;
+
+        BroadcastSession session = new BroadcastSession(url, response, contentLength, new BroadcastBuffer(bufferSize, maxLag));
+        sessions.put(url, session);
+        log.debug("Broadcast - started " + url);
+        return session;
+    }
+
+    /**
+     * @param url
+     * @return the session for the URL or null if there isn't one
+     */
+    public static synchronized BroadcastSession find(String url)
+    {
+        return sessions.get(url);
+    }
+
+    /**
+     * Stop other clients from joining, the ones that have joined carry on reading
+     */
+    public void end()
+    {
+        synchronized (BroadcastSession.class)
+        {
+            if (sessions.get(url) != this) return;
+            sessions.remove(url);
+        }
+        log.debug("Broadcast - ended " + url);
+    }
+
+    /**
+     * Join the session
+     *
+     * @return a reader for the client, or null if it is too late to join
+     */
+    public BroadcastBuffer.Reader attach()
+    {
+        return buffer.attach(lengthInHeaders);
+    }
+
+    public BroadcastBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    public byte[] getResponseBytes()
+    {
+        return responseBytes;
+    }
+
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+}
@@ -0,0 +1,177 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.http.ByteRange;
+import com.outertrack.jspeedstreamer.http.HttpRequest;
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The HTTP API for prefetch jobs. Requests made to the proxy itself (not through it) for paths under
+ * /jspeedstreamer/jobs are handled here:
+ *
+ * GET /jspeedstreamer/jobs - list the jobs
+ * POST /jspeedstreamer/jobs?url=<url>&range=<start>-<end>&priority=<n> - submit a job, range and priority are optional
+ * GET /jspeedstreamer/jobs/<id> - one job
+ * DELETE /jspeedstreamer/jobs/<id> - cancel a job
+ *
+ * Jobs are listed one per line as: id state priority done/total url [range]
+ *
+ * @author conorhunt
+ *
+ */
+public class ControlApi
+{
+    private static MultiLogger log = MultiLogger.getLogger(ControlApi.class);
+
+    public static final String PATH = "/jspeedstreamer/jobs";
+
+    /**
+     * @param request
+     * @return true if the request is for the control API
+     */
+    public static boolean isControlRequest(HttpRequest request)
+    {
+        String path = request.getPath();
+        return request.isDirect() && (path.equals(PATH) || path.startsWith(PATH + "/") || path.startsWith(PATH + "?"));
+    }
+
+    /**
+     * Answer a control API request
+     *
+     * @param request
+     * @param out
+     * @param cache null if prefetch jobs are turned off
+     * @throws IOException
+     */
+    public static void handle(HttpRequest request, OutputStream out, WarmupCache cache) throws IOException
+    {
+        if (cache == null)
+        {
+            respond(out, 503, "Service Unavailable", "Prefetch jobs need -cache_dir\n");
+            return;
+        }
+        FileDownloader downloader = cache.getDownloader();
+
+        String path = request.getPath();
+        HashMap<String, String> params = new HashMap<String, String>();
+        int queryIndex = path.indexOf('?');
+        if (queryIndex >= 0)
+        {
+            params = parseQuery(path.substring(queryIndex + 1));
+            path = path.substring(0, queryIndex);
+        }
+        String method = request.getRequestType().toUpperCase();
+
+        if (path.equals(PATH) || path.equals(PATH + "/"))
+        {
+            if (method.equals("GET"))
+            {
+                StringBuffer body = new StringBuffer();
+                List<FileDownloader.FileDownload> jobs = downloader.getJobs();
+                for (int i = 0; i < jobs.size(); i++)
+                    body.append(describe(jobs.get(i)));
+                respond(out, 200, "OK", body.toString());
+            }
+            else if (method.equals("POST"))
+            {
+                String url = params.get("url");
+                if (url == null)
+                {
+                    respond(out, 400, "Bad Request", "url is needed\n");
+                    return;
+                }
+                try
+                {
+                    ByteRange range = params.containsKey("range") ? parseRange(params.get("range")) : null;
+                    int priority = params.containsKey("priority") ? Integer.parseInt(params.get("priority")) : 0;
+                    respond(out, 201, "Created", describe(cache.submit(url, range, priority)));
+                }
+                catch (NumberFormatException e)
+                {
+                    respond(out, 400, "Bad Request", "Bad range or priority\n");
+                }
+                catch (IOException e)
+                {
+                    respond(out, 400, "Bad Request", e.getMessage() + "\n");
+                }
+            }
+            else
+                respond(out, 405, "Method Not Allowed", "Use GET or POST\n");
+            return;
+        }
+
+        int id = -1;
+        try
+        {
+            id = Integer.parseInt(path.substring(PATH.length() + 1));
+        }
+        catch (NumberFormatException e)
+        {}
+
+        FileDownloader.FileDownload job = null;
+        if (method.equals("GET"))
+            job = downloader.getJob(id);
+        else if (method.equals("DELETE"))
+            job = downloader.cancel(id);
+        else
+        {
+            respond(out, 405, "Method Not Allowed", "Use GET or DELETE\n");
+            return;
+        }
+
+        if (job == null)
+            respond(out, 404, "Not Found", "No job " + path.substring(PATH.length() + 1) + "\n");
+        else
+            respond(out, 200, "OK", describe(job));
+    }
+
+    private static String describe(FileDownloader.FileDownload job)
+    {
+        ByteRange range = job.getRange();
+        return job.getId() + " " + job.getState() + " " + job.getPriority() + " " + job.getDoneBytes() + "/" + job.getTotalBytes() + " " + job.getUrl()
+                + (range != null ? " " + range.getStart() + "-" + (range.getEnd() == Long.MAX_VALUE ? "" : "" + (range.getEnd() - 1)) : "") + "\n";
+    }
+
+    /**
+     * @param value start-end with the end included, like a Range header. The end can be left off.
+     * @return
+     */
+    private static ByteRange parseRange(String value)
+    {
+        int dash = value.indexOf('-');
+        if (dash <= 0) throw new NumberFormatException(value);
+        long start = Long.parseLong(value.substring(0, dash).trim());
+        String end = value.substring(dash + 1).trim();
+        ByteRange range = new ByteRange(start, end.length() == 0 ? Long.MAX_VALUE : Long.parseLong(end) + 1);
+        if (range.getLength() <= 0) throw new NumberFormatException(value);
+        return range;
+    }
+
+    private static HashMap<String, String> parseQuery(String query) throws UnsupportedEncodingException
+    {
+        HashMap<String, String> params = new HashMap<String, String>();
+        String pairs[] = query.split("&");
+        for (int i = 0; i < pairs.length; i++)
+        {
+            int equals = pairs[i].indexOf('=');
+            if (equals <= 0) continue;
+            params.put(URLDecoder.decode(pairs[i].substring(0, equals), "UTF-8"), URLDecoder.decode(pairs[i].substring(equals + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void respond(OutputStream out, int code, String reason, String body) throws IOException
+    {
+        log.debug("Control API " + code + " " + body.trim());
+        byte bodyBytes[] = body.getBytes("UTF-8");
+        String headers = "HTTP/1.1 " + code + " " + reason + "\r\n" + "Content-Type: text/plain\r\n" + "Content-Length: " + bodyBytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(headers.getBytes("ISO-8859-1"));
+        out.write(bodyBytes);
+        out.flush();
+    }
+}
@@ -1,12 +1,19 @@
 package com.outertrack.jspeedstreamer;
 
+import com.outertrack.jspeedstreamer.http.ByteRange;
 import com.outertrack.jspeedstreamer.http.HttpRequest;
 import com.outertrack.jspeedstreamer.http.HttpResponse;
-import com.outertrack.jspeedstreamer.utils.CircularDownloadBuffer;
+import com.outertrack.jspeedstreamer.utils.DownloadBuffer;
 import com.outertrack.jspeedstreamer.utils.MultiLogger;
+import com.outertrack.jspeedstreamer.utils.ProxyEvents;
+import com.outertrack.jspeedstreamer.utils.TokenBucket;
 
 import java.io.*;
-import java.net.SocketTimeoutException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is a single thread that downloads blocks of data from an HTTP stream.
@@ -18,13 +25,24 @@ public class DownloadThread extends Thread
 {
     private static MultiLogger log = MultiLogger.getLogger(DownloadThread.class);    
     
+    // How many times in a row a block can fail before it is handed to another thread, and the
+    // wait after the first failure
+    private static final int MAX_RETRIES = 3;
+    private static final long BACKOFF_BASE = 250;
+    
     HttpRequest request = null;
-    CircularDownloadBuffer buffer = null;
+    DownloadBuffer buffer = null;
     ProxyThread manager = null;
     
     long currentPosition = 0;
     long startPosition = 0;
     long endPosition = 0;
+    
+    // The ranges this thread has been told to download, usually just startPosition -> endPosition
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+    
+    // The parts of a multi range request that haven't arrived yet
+    List<ByteRange> unfinished = new ArrayList<ByteRange>();
 
     /***
      * 
@@ -32,7 +50,7 @@ public class DownloadThread extends Thread
      * @param buffer Buffer to write results of HTTP request to
      * @param manager ProxyThread manager to be notified of status changes
      */
-    public DownloadThread(HttpRequest request, CircularDownloadBuffer buffer, ProxyThread manager)
+    public DownloadThread(HttpRequest request, DownloadBuffer buffer, ProxyThread manager)
     {
         this.request = request;
         this.buffer = buffer;
@@ -47,55 +65,391 @@ public class DownloadThread extends Thread
      */
     public void setBlock(long startPosition, long endPosition)
     {
+        this.ranges.clear();
+        this.ranges.add(new ByteRange(startPosition, endPosition));
         this.startPosition = startPosition;
         this.currentPosition = startPosition;
         this.endPosition = endPosition;
     }
 
+    /**
+     * Set several disjoint blocks of data that this thread should download with a single multi range
+     * request. The blocks must be in stream order.
+     * 
+     * @param blocks
+     */
+    public void setBlocks(List<ByteRange> blocks)
+    {
+        this.ranges.clear();
+        this.ranges.addAll(blocks);
+        this.startPosition = blocks.get(0).getStart();
+        this.currentPosition = startPosition;
+        this.endPosition = blocks.get(blocks.size() - 1).getEnd();
+    }
+
     public void run()
     {
+        byte[] byteBuf = new byte[20000];
+        // Keep going while the manager thread says so
+        while (manager.notifyThreadReady(this, (int) (currentPosition - startPosition)))
+        {
+            try
+            {
+                if (ranges.size() > 1)
+                    downloadRanges(byteBuf);
+                else if (!downloadBlock(byteBuf) && !stayAfterFailure())
+                    break;
+            }
+            catch (Exception e)
+            {
+                // Something unexpected, make sure the manager knows and that none of our blocks are lost
+                e.printStackTrace();
+                returnUnfinished();
+                if (!stayAfterFailure())
+                    break;
+            }
+        }
+    }
+    
+    /**
+     * Called when this thread can't carry on with its blocks. The manager lets it quit unless it is
+     * the last one, that one backs off and then takes the next block so the download doesn't stall.
+     * 
+     * @return true if the thread should keep going
+     */
+    private boolean stayAfterFailure()
+    {
+        if (manager.notifyThreadFailed(this))
+            return false;
+        backOff(MAX_RETRIES);
+        return true;
+    }
+    
+    /**
+     * Hands back to the manager whatever part of this thread's blocks hasn't been written to the
+     * buffer. Only what hasn't arrived, bytes the client may already have read must not be written
+     * again.
+     */
+    private void returnUnfinished()
+    {
+        if (ranges.size() == 1)
+        {
+            if (currentPosition < endPosition)
+                manager.notifyRangeMissing(currentPosition, endPosition);
+        }
+        else
+        {
+            for (int i = 0; i < unfinished.size(); i++)
+                manager.notifyRangeMissing(unfinished.get(i).getStart(), unfinished.get(i).getEnd());
+        }
+        currentPosition = endPosition;
+        unfinished.clear();
+    }
+    
+    /**
+     * Download the single block between startPosition and endPosition. After a timeout or a dropped
+     * connection the request is retried from where we got to, after a backoff. If it keeps failing
+     * the rest of the block is handed back to the manager so that a healthy thread can pick it up.
+     * 
+     * @return false if this thread should stop
+     */
+    private boolean downloadBlock(byte[] byteBuf)
+    {
+        OriginCapabilities origin = manager.getOrigin();
+        LocalAddressPool addressPool = manager.getAddressPool();
+        TokenBucket readBucket = manager.getReadBucket();
+        int failures = 0;
+        while (currentPosition < endPosition && !manager.isFinished())
+        {
+            long attemptStartPosition = currentPosition;
+            HttpResponse response = null;
+            InetAddress localAddress = addressPool != null ? addressPool.acquire() : null;
+            long requestTime = System.currentTimeMillis();
+            ProxyEvents.SegmentAttempt attemptEvent = new ProxyEvents.SegmentAttempt();
+            attemptEvent.begin();
+            try
+            {
+                // log.debug("Dl thread start: " + currentPosition + " -> " + (endPosition));
+                // Execute the Http request to get the block of data that the manager thread told this thread to download.
+                ProxyEvents.SegmentRequest requestEvent = new ProxyEvents.SegmentRequest();
+                requestEvent.begin();
+                response = request.execute(currentPosition, endPosition - 1, origin.getConnectTimeout(), origin.getReadTimeout(byteBuf.length), localAddress);
+                currentResponse = response;
+                origin.recordTtfb(System.currentTimeMillis() - requestTime);
+                if (requestEvent.isEnabled())
+                {
+                    requestEvent.origin = request.getOrigin();
+                    requestEvent.start = currentPosition;
+                    requestEvent.end = endPosition;
+                    requestEvent.responseCode = response.getResponseCode();
+                    requestEvent.commit();
+                }
+                if (!isRequestedRange(response, currentPosition))
+                {
+                    manager.notifyRangeMissing(currentPosition, endPosition);
+                    return false;
+                }
+
+                // Read straight into the circular buffer rather than copying through byteBuf
+                long blockStartTime = System.currentTimeMillis();
+                InputStream in = response.getInputStream();
+                int bytesRead = -2;
+                while (currentPosition < endPosition && !manager.isFinished())
+                {
+                    ByteBuffer region = buffer.getWriteRegion(currentPosition, (int) Math.min(byteBuf.length, endPosition - currentPosition));
+                    if (region == null || (bytesRead = in.read(region.array(), region.position(), region.remaining())) < 0)
+                        break;
+                    buffer.commit(currentPosition, bytesRead);
+                    currentPosition += bytesRead;
+                    bytesTransferred += bytesRead;
+                    
+                    // A client that is waiting on us can go over the session's share
+                    if (readBucket != null)
+                        readBucket.take(bytesRead, buffer.isReaderWaiting());
+                }
+                origin.recordThroughput(currentPosition - attemptStartPosition, System.currentTimeMillis() - blockStartTime);
+                
+                if (currentPosition < endPosition && !manager.isFinished())
+                    log.debug("Dl thread short read at " + currentPosition + " -> " + endPosition);
+            }
+            catch (ConnectException e)
+            {
+                // Not taken as a connection limit, a refused connection is more often the network or a restart
+                log.debug("Dl thread connection refused: " + e.getMessage());
+            }
+            catch (IOException e)
+            {
+                log.debug("Dl thread " + e + " startPosition: " + startPosition + " currentPosition: " + currentPosition);
+            }
+            finally
+            {
+                currentResponse = null;
+                close(response);
+                if (addressPool != null)
+                    addressPool.release(localAddress, currentPosition - attemptStartPosition, System.currentTimeMillis() - requestTime);
+            }
+            
+            if (attemptEvent.isEnabled())
+            {
+                attemptEvent.start = attemptStartPosition;
+                attemptEvent.end = endPosition;
+                attemptEvent.bytes = currentPosition - attemptStartPosition;
+                attemptEvent.completed = currentPosition >= endPosition;
+                attemptEvent.failures = failures;
+                attemptEvent.commit();
+            }
+            
+            if (currentPosition >= endPosition || manager.isFinished())
+                break;
+            
+            // Slow but steady progress isn't a failure
+            if (currentPosition > attemptStartPosition)
+                failures = 0;
+            
+            // Let another thread have a go at the block while this one waits out the trouble, then it
+            // takes whatever is next. Each block is a new connection so the thread isn't stuck with a bad one.
+            if (++failures > MAX_RETRIES)
+            {
+                log.debug("Dl thread giving up on block, returning " + currentPosition + " -> " + endPosition);
+                manager.notifyRangeMissing(currentPosition, endPosition);
+                currentPosition = endPosition;
+                backOff(failures);
+                return true;
+            }
+            backOff(failures);
+        }
+        return true;
+    }
+    
+    /**
+     * Wait before retrying. The wait doubles with each failure and is jittered so that threads that
+     * failed together don't all come back at the same moment.
+     */
+    private void backOff(int failures)
+    {
+        long wait = BACKOFF_BASE << (failures - 1);
+        wait += (long) (Math.random() * wait);
+        try
+        {
+            Thread.sleep(wait);
+        }
+        catch (InterruptedException e)
+        {}
+    }
+    
+    /**
+     * Stops this thread straight away. Closing the response it is reading breaks a read that is
+     * blocked on the server and the interrupt wakes it from any wait. The manager has to be finished
+     * first so that the thread doesn't retry.
+     */
+    public void abort()
+    {
+        interrupt();
+        close(currentResponse);
+    }
+    
+    private void close(HttpResponse response)
+    {
+        try
+        {
+            if (response != null) response.close();
+        }
+        catch (IOException e)
+        {}
+    }
+    
+    /**
+     * Checks that the server sent the range we asked for. A server that ignores Range sends the
+     * whole stream from the start with a 200 and writing that into the buffer would corrupt it,
+     * as does one whose stream has changed when the request has an If-Range. A 503 or 429 means the
+     * server doesn't want this many connections.
+     */
+    private boolean isRequestedRange(HttpResponse response, long position)
+    {
+        int responseCode = response.getResponseCode();
+        if (responseCode == 206 && response.getContentRangeStart() == request.getOriginalStart() + position)
+            return true;
+        
+        log.debug("Dl thread unexpected response to range request: " + responseCode + " Content-Range start: " + response.getContentRangeStart());
+        if (responseCode == 200 && request.getHeader("if-range") == null)
+            manager.getOrigin().setRangeSupport(false);
+        else if (responseCode == 503 || responseCode == 429)
+            manager.getOrigin().recordConnectionLimit(manager.getActiveThreadCount() - 1);
+        return false;
+    }
+    
+    /**
+     * Download several disjoint ranges with a single multi range request. The parts of the
+     * multipart/byteranges response are written into the buffer as they arrive. Anything that doesn't
+     * arrive is handed back to the manager to be fetched again.
+     */
+    private void downloadRanges(byte[] byteBuf)
+    {
+        OriginCapabilities origin = manager.getOrigin();
+        LocalAddressPool addressPool = manager.getAddressPool();
+        TokenBucket readBucket = manager.getReadBucket();
+        unfinished = new ArrayList<ByteRange>(ranges);
+        HttpResponse response = null;
+        InetAddress localAddress = addressPool != null ? addressPool.acquire() : null;
+        long requestTime = System.currentTimeMillis();
+        long bytesBefore = bytesTransferred;
+        ProxyEvents.SegmentAttempt attemptEvent = new ProxyEvents.SegmentAttempt();
+        attemptEvent.begin();
         try
         {
-            byte[] byteBuf = new byte[20000];
-            boolean tryAgain = false;
-            // Keep going while the manager thread says so
-            while (manager.notifyThreadReady(this, (int) (currentPosition - startPosition)))
+            ProxyEvents.SegmentRequest requestEvent = new ProxyEvents.SegmentRequest();
+            requestEvent.begin();
+            response = request.execute(ranges, origin.getConnectTimeout(), origin.getReadTimeout(byteBuf.length), localAddress);
+            currentResponse = response;
+            if (requestEvent.isEnabled())
+            {
+                requestEvent.origin = request.getOrigin();
+                requestEvent.start = startPosition;
+                requestEvent.end = endPosition;
+                requestEvent.responseCode = response.getResponseCode();
+                requestEvent.commit();
+            }
+            if (response.isMultipartByteRanges())
             {
-                do
+                while (!manager.isFinished() && response.nextPart())
                 {
-                    try
+                    long position = response.getPartStart() - request.getOriginalStart();
+                    int bytesRead = -2;
+                    while (!manager.isFinished() && (bytesRead = response.readPart(byteBuf)) > 0)
                     {
-                        tryAgain = false;
-                        lastMeasuredPosition = currentPosition;
-
-                        // log.debug("Dl thread start: " + currentPosition + " -> " + (endPosition));
-                        // Execute the Http request to get the block of data that the manager thread told this thread to download.
-                        HttpResponse response = request.execute(currentPosition, endPosition - 1, 1000);
-
-                        InputStream in = response.getInputStream();
-                        int bytesRead = -2;
-                        while (currentPosition < endPosition && !manager.isFinished() && (bytesRead = in.read(byteBuf)) >= 0)
-                        {
-                            buffer.write(byteBuf, bytesRead, currentPosition);
-                            currentPosition += bytesRead;
-                        }
-                        response.close();
+                        unfinished = writeRequested(byteBuf, bytesRead, position, unfinished);
+                        position += bytesRead;
+                        if (readBucket != null)
+                            readBucket.take(bytesRead, buffer.isReaderWaiting());
                     }
-                    catch(SocketTimeoutException e)
-                    {
-                        log.debug("Dl thread trying again after timeout startPosition: " + startPosition + " currentPosition: " + currentPosition);                        
-                        tryAgain = true;
-                    }                
-                } while(tryAgain);
+                }
+            }
+            else if (response.getResponseCode() == 206 && response.getContentRangeStart() >= 0)
+            {
+                // The server coalesced the ranges into one or only sent the first one. Keep whatever
+                // overlaps what we asked for, the bytes in between may already have been read by the client
+                long position = response.getContentRangeStart() - request.getOriginalStart();
+                long remaining = response.getContentRangeEnd() - response.getContentRangeStart() + 1;
+                InputStream in = response.getInputStream();
+                int bytesRead = -2;
+                while (remaining > 0 && !unfinished.isEmpty() && !manager.isFinished() 
+                        && (bytesRead = in.read(byteBuf, 0, (int) Math.min(byteBuf.length, remaining))) >= 0)
+                {
+                    unfinished = writeRequested(byteBuf, bytesRead, position, unfinished);
+                    position += bytesRead;
+                    remaining -= bytesRead;
+                    if (readBucket != null)
+                        readBucket.take(bytesRead, buffer.isReaderWaiting());
+                }
+                if (!unfinished.isEmpty()) manager.notifyMultiRangeUnsupported();
+            }
+            else
+            {
+                log.debug("Dl thread multi range request ignored, response code: " + response.getResponseCode());
+                manager.notifyMultiRangeUnsupported();
             }
         }
-        catch (Exception e)
+        catch(IOException e)
+        {
+            log.debug("Dl thread " + e + " during multi range request " + startPosition + " -> " + endPosition);
+        }
+        finally
+        {
+            currentResponse = null;
+            close(response);
+            if (addressPool != null)
+                addressPool.release(localAddress, bytesTransferred - bytesBefore, System.currentTimeMillis() - requestTime);
+        }
+        
+        if (attemptEvent.isEnabled())
+        {
+            attemptEvent.start = startPosition;
+            attemptEvent.end = endPosition;
+            attemptEvent.bytes = bytesTransferred - bytesBefore;
+            attemptEvent.completed = unfinished.isEmpty();
+            attemptEvent.commit();
+        }
+        
+        if (!manager.isFinished())
+            returnUnfinished();
+    }
+    
+    /**
+     * Writes the parts of the data that fall in the missing ranges into the buffer.
+     * 
+     * @return the ranges that are still missing after this write
+     */
+    private List<ByteRange> writeRequested(byte[] data, int length, long position, List<ByteRange> missing)
+    {
+        long end = position + length;
+        List<ByteRange> stillMissing = new ArrayList<ByteRange>(missing.size() + 1);
+        for (int i = 0; i < missing.size(); i++)
         {
-            e.printStackTrace();
+            ByteRange r = missing.get(i);
+            long from = Math.max(r.getStart(), position);
+            long to = Math.min(r.getEnd(), end);
+            if (from >= to)
+            {
+                stillMissing.add(r);
+                continue;
+            }
+            
+            buffer.write(data, (int) (from - position), (int) (to - from), from);
+            currentPosition = to;
+            bytesTransferred += to - from;
+            
+            if (r.getStart() < from) stillMissing.add(new ByteRange(r.getStart(), from));
+            if (to < r.getEnd()) stillMissing.add(new ByteRange(to, r.getEnd()));
         }
+        return stillMissing;
     }
     
-    private long lastMeasuredPosition = startPosition;
+    // The response being read, so that abort() can close it from another thread
+    private volatile HttpResponse currentResponse = null;
+    
+    // Total bytes this thread has written to the buffer, used to measure its speed
+    private long bytesTransferred = 0;
+    private long lastMeasuredBytes = 0;
     private long lastMeasuredTime = System.currentTimeMillis();
     /**
      * Calculates the speed of the download of this thread in bytes per second.
@@ -103,12 +457,12 @@ public class DownloadThread extends Thread
      */
     public int getSpeed() 
     {
-        long currentData = currentPosition;
+        long currentData = bytesTransferred;
         long currentTime = System.currentTimeMillis();
-        long dataTransferred = currentData - lastMeasuredPosition;
+        long dataTransferred = currentData - lastMeasuredBytes;
         long timeTaken = currentTime - lastMeasuredTime;
         lastMeasuredTime = currentTime;
-        lastMeasuredPosition = currentData;
+        lastMeasuredBytes = currentData;
         
         if(timeTaken > 0)
           return (int) (dataTransferred / (timeTaken / 1000));
@@ -0,0 +1,896 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.http.ByteRange;
+import com.outertrack.jspeedstreamer.http.HttpRequest;
+import com.outertrack.jspeedstreamer.http.HttpResponse;
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+import com.outertrack.jspeedstreamer.utils.TokenBucket;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads URLs straight to files instead of streaming them to a proxy client. Nothing has to be
+ * delivered in order, so each segment is written at its own offset in the file as soon as it
+ * arrives.
+ *
+ * Each file has a journal next to it (name.journal) listing the segments that are safely on disk. If
+ * the download is stopped it picks up from the journal the next time it is run, and the journal is
+ * deleted once the file is complete.
+ *
+ * A fixed number of connection threads is shared by all of the files. Files are started in order, a
+ * few at a time, and the threads take segments from whichever started file has some left.
+ *
+ * It can also run in the background inside the proxy, taking prefetch jobs as they are submitted.
+ * Jobs with a higher priority are started and served first, and while any client is being proxied the
+ * connections stop at the end of their current read and wait, so jobs never compete with a player.
+ *
+ * @author conorhunt
+ *
+ */
+public class FileDownloader
+{
+    private static MultiLogger log = MultiLogger.getLogger(FileDownloader.class);
+
+    // How many times in a row a segment can fail before the file is given up on, and the wait after the first failure
+    private static final int MAX_RETRIES = 3;
+    private static final long BACKOFF_BASE = 250;
+
+    private String outputDir = ".";
+    private int connectionCount = 4;
+    private int parallelFiles = 2;
+    private int segmentSize = 1000000;
+
+    // Shapes the reads when bandwidth is limited, null if it isn't
+    private volatile BandwidthShaper shaper = null;
+
+    // Files that haven't been started yet, highest priority first, and the files being downloaded
+    private LinkedList<FileDownload> waiting = new LinkedList<FileDownload>();
+    private List<FileDownload> active = new ArrayList<FileDownload>();
+    private boolean allStarted = false;
+    private int failedCount = 0;
+    
+    // Set when running as the proxy's background job service, there is then always more work to wait for
+    private boolean background = false;
+    private List<FileDownload> jobs = new ArrayList<FileDownload>();
+    private int nextJobId = 1;
+
+    /**
+     * @param urls
+     * @param outputDir directory to put the files in
+     * @param connectionCount number of connections used across all of the files
+     * @param parallelFiles number of files downloaded at the same time
+     * @param segmentSize
+     */
+    public FileDownloader(List<String> urls, String outputDir, int connectionCount, int parallelFiles, int segmentSize)
+    {
+        this(outputDir, connectionCount, parallelFiles, segmentSize);
+        for (int i = 0; i < urls.size(); i++)
+            waiting.add(new FileDownload(urls.get(i), null, null, null, 0));
+    }
+
+    /**
+     * Creates a downloader for jobs that are submitted later, call startBackground() to run it
+     *
+     * @param outputDir
+     * @param connectionCount
+     * @param parallelFiles
+     * @param segmentSize
+     */
+    public FileDownloader(String outputDir, int connectionCount, int parallelFiles, int segmentSize)
+    {
+        if (outputDir != null) this.outputDir = outputDir;
+        this.connectionCount = connectionCount;
+        this.parallelFiles = parallelFiles;
+        this.segmentSize = segmentSize;
+    }
+
+    public void setShaper(BandwidthShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+
+    /**
+     * Download all of the files
+     *
+     * @return true if they were all downloaded
+     */
+    public boolean run()
+    {
+        int fileCount = waiting.size();
+        List<ConnectionThread> threads = new ArrayList<ConnectionThread>();
+        for (int i = 0; i < connectionCount; i++)
+        {
+            ConnectionThread t = new ConnectionThread();
+            t.start();
+            threads.add(t);
+        }
+
+        startFiles();
+
+        for (int i = 0; i < threads.size(); i++)
+        {
+            try
+            {
+                threads.get(i).join();
+            }
+            catch (InterruptedException e)
+            {}
+        }
+        log.info("Downloaded " + (fileCount - failedCount) + " of " + fileCount + " files");
+        return failedCount == 0;
+    }
+
+    /**
+     * Run as a service for prefetch jobs, the connection threads and the thread that starts the jobs
+     * run until the proxy exits
+     */
+    public void startBackground()
+    {
+        background = true;
+        for (int i = 0; i < connectionCount; i++)
+        {
+            ConnectionThread t = new ConnectionThread();
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Thread starter = new Thread()
+        {
+            public void run()
+            {
+                startFiles();
+            }
+        };
+        starter.setDaemon(true);
+        starter.start();
+    }
+
+    /**
+     * Start the files in order, never more than parallelFiles at once
+     */
+    private void startFiles()
+    {
+        while (true)
+        {
+            FileDownload download = null;
+            synchronized (this)
+            {
+                while (active.size() >= parallelFiles || (nextStartable() == null && (background || !waiting.isEmpty())))
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {}
+                }
+                if (waiting.isEmpty())
+                {
+                    allStarted = true;
+                    notifyAll();
+                    break;
+                }
+                download = nextStartable();
+                waiting.remove(download);
+                download.state = "starting";
+            }
+
+            try
+            {
+                download.open();
+            }
+            catch (IOException e)
+            {
+                log.info("Failed to start " + download.url + ": " + e.getMessage());
+                synchronized (this)
+                {
+                    download.state = download.cancelled ? "cancelled" : "failed";
+                    failedCount++;
+                }
+                continue;
+            }
+            synchronized (this)
+            {
+                // The journal may show that there is nothing left to do, or the job was cancelled while it was starting
+                if (download.pending.isEmpty() || download.cancelled)
+                {
+                    download.pending.clear();
+                    download.finish();
+                    continue;
+                }
+                download.state = "running";
+                addActive(download);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the first waiting file that can be started, or null if there isn't one. A job for the
+     *         same file as an earlier one waits for it to finish.
+     */
+    private FileDownload nextStartable()
+    {
+        for (int i = 0; i < waiting.size(); i++)
+        {
+            FileDownload download = waiting.get(i);
+            if (download.after == null || download.after.isFinished()) return download;
+        }
+        return null;
+    }
+
+    /**
+     * Submit a prefetch job
+     *
+     * @param url
+     * @param file file to download it to
+     * @param metaFile file to write the length, content type and validators to, for serving it again
+     * @param range part of the file to download, null for all of it
+     * @param priority jobs with higher priorities go first
+     * @return the job
+     * @throws IOException if the URL can't be downloaded
+     */
+    public synchronized FileDownload submit(String url, File file, File metaFile, ByteRange range, int priority) throws IOException
+    {
+        // Make sure that it is a URL that can be fetched
+        new HttpRequest(url);
+
+        // Two jobs writing the same file would trample on each other. One that is already fetching
+        // all of this range does for both, otherwise this one goes after the last of them and only
+        // fetches what they didn't.
+        FileDownload after = null;
+        for (int i = 0; i < jobs.size(); i++)
+        {
+            FileDownload existing = jobs.get(i);
+            if (existing.isFinished() || existing.cancelled || existing.file == null || !existing.file.equals(file))
+                continue;
+            if (existing.covers(range))
+            {
+                log.info("Prefetch job " + existing.id + " is already fetching " + url + (range != null ? " " + range : ""));
+                return existing;
+            }
+            after = existing;
+        }
+
+        FileDownload job = new FileDownload(url, file, metaFile, range, priority);
+        job.id = nextJobId++;
+        job.after = after;
+        jobs.add(job);
+
+        int i = 0;
+        while (i < waiting.size() && waiting.get(i).priority >= priority)
+            i++;
+        waiting.add(i, job);
+        notifyAll();
+        log.info("Prefetch job " + job.id + " submitted for " + url + (after != null ? ", after job " + after.id : ""));
+        return job;
+    }
+
+    /**
+     * @return all of the jobs that have been submitted
+     */
+    public synchronized List<FileDownload> getJobs()
+    {
+        return new ArrayList<FileDownload>(jobs);
+    }
+
+    /**
+     * @param id
+     * @return the job, or null if there is no job with that id
+     */
+    public synchronized FileDownload getJob(int id)
+    {
+        for (int i = 0; i < jobs.size(); i++)
+        {
+            if (jobs.get(i).id == id) return jobs.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Cancel a job. Whatever it has already downloaded is kept.
+     *
+     * @param id
+     * @return the job, or null if there is no job with that id
+     */
+    public synchronized FileDownload cancel(int id)
+    {
+        FileDownload job = getJob(id);
+        if (job == null || job.isFinished()) return job;
+
+        job.cancelled = true;
+        job.pending.clear();
+        if (waiting.remove(job))
+            job.state = "cancelled";
+        else if (active.contains(job) && job.inProgress == 0)
+            job.finish();
+        // Otherwise it is starting, or its connections will see that it is cancelled and finish it
+        notifyAll();
+        return job;
+    }
+
+    // Keeps the active files in priority order
+    private void addActive(FileDownload download)
+    {
+        int i = 0;
+        while (i < active.size() && active.get(i).priority >= download.priority)
+            i++;
+        active.add(i, download);
+    }
+
+    /**
+     * Connection threads call this for their next segment. It waits until there is one.
+     *
+     * @return the segment, or null once every file is finished
+     */
+    private synchronized Segment nextSegment()
+    {
+        while (true)
+        {
+            // Background jobs wait until no clients are being proxied
+            if (!background || ProxyThread.getLiveClients() == 0)
+            {
+                for (int i = 0; i < active.size(); i++)
+                {
+                    Segment segment = active.get(i).nextSegment();
+                    if (segment != null) return segment;
+                }
+            }
+            if (allStarted && active.isEmpty()) return null;
+
+            try
+            {
+                if (background)
+                    wait(200);
+                else
+                    wait();
+            }
+            catch (InterruptedException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Called when a file is complete or has failed
+     */
+    private synchronized void fileFinished(FileDownload download, boolean ok)
+    {
+        active.remove(download);
+        if (!ok) failedCount++;
+        notifyAll();
+    }
+
+    /**
+     * One file being downloaded, or a prefetch job
+     */
+    public class FileDownload
+    {
+        String url = null;
+        HttpRequest request = null;
+        OriginCapabilities origin = null;
+        TokenBucket readBucket = null;
+
+        File file = null;
+        File journalFile = null;
+        File metaFile = null;
+        FileChannel channel = null;
+        Writer journal = null;
+
+        // -1 if the server didn't tell us, the file is then fetched in one go with no resume
+        long length = -1;
+
+        // Part of the file to download, null for all of it
+        ByteRange range = null;
+
+        // Segments that haven't been handed out, and how many are being downloaded
+        LinkedList<ByteRange> pending = new LinkedList<ByteRange>();
+        int inProgress = 0;
+        boolean failed = false;
+
+        // Job details, for files downloaded in the background
+        int id = 0;
+        int priority = 0;
+        volatile String state = "waiting";
+        volatile boolean cancelled = false;
+        volatile long totalBytes = -1;
+        AtomicLong doneBytes = new AtomicLong();
+
+        // An earlier job for the same file that has to finish before this one starts
+        FileDownload after = null;
+
+        FileDownload(String url, File file, File metaFile, ByteRange range, int priority)
+        {
+            this.url = url;
+            this.file = file;
+            this.metaFile = metaFile;
+            this.range = range;
+            this.priority = priority;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        public String getUrl()
+        {
+            return url;
+        }
+
+        public ByteRange getRange()
+        {
+            return range;
+        }
+
+        public int getPriority()
+        {
+            return priority;
+        }
+
+        /**
+         * @return waiting, starting, running, done, failed or cancelled
+         */
+        public String getState()
+        {
+            return state;
+        }
+
+        public long getDoneBytes()
+        {
+            return doneBytes.get();
+        }
+
+        /**
+         * @return bytes the job has to download in all, -1 until it has started
+         */
+        public long getTotalBytes()
+        {
+            return totalBytes;
+        }
+
+        /**
+         * @param other part of the file, null for all of it
+         * @return true if this job fetches all of that part
+         */
+        boolean covers(ByteRange other)
+        {
+            if (range == null) return true;
+            return other != null && range.getStart() <= other.getStart() && range.getEnd() >= other.getEnd();
+        }
+
+        boolean isFinished()
+        {
+            return state.equals("done") || state.equals("failed") || state.equals("cancelled");
+        }
+
+        /**
+         * Finds out how long the file is, reads the journal if there is one and works out the segments
+         * that are still needed
+         */
+        void open() throws IOException
+        {
+            request = new HttpRequest(url);
+            origin = OriginCapabilities.get(request.getOrigin());
+            if (shaper != null) readBucket = shaper.getOriginBucket(request.getOrigin());
+
+            if (file == null)
+            {
+                String name = request.getFileName();
+                if (name.length() == 0) name = "index.html";
+                file = new File(outputDir, name);
+            }
+            journalFile = new File(file.getPath() + ".journal");
+
+            String contentType = null;
+            String etag = null;
+            String lastModified = null;
+            HttpResponse probe = request.probe(origin.getReadTimeout(1));
+            try
+            {
+                if (probe.getResponseCode() == 206 && probe.getContentRangeStart() == 0 && probe.getInstanceLength() > 0)
+                    length = probe.getInstanceLength();
+                else if (probe.getResponseCode() != 200)
+                    throw new IOException("response code " + probe.getResponseCode());
+                origin.setRangeSupport(length > 0);
+                contentType = probe.getHeader("content-type");
+                etag = probe.getHeader("etag");
+                lastModified = probe.getHeader("last-modified");
+            }
+            finally
+            {
+                probe.close();
+            }
+            if (length < 0 && range != null)
+                throw new IOException("the server doesn't do ranges");
+
+            // What is on the disk is only kept if the server still has the same version. Without a meta
+            // there is nothing to check, the length in the journal has to do.
+            String validator = HttpResponse.getValidator(etag, lastModified);
+            WarmupCache.Meta meta = metaFile != null ? WarmupCache.readMeta(metaFile) : null;
+            boolean sameVersion = metaFile == null
+                    || (meta != null && meta.length == length && (validator == null || validator.equals(meta.getValidator())));
+            if (meta != null && !sameVersion)
+                log.info(url + " has changed since it was fetched, fetching it again");
+
+            // A file with its meta and no journal was finished by an earlier job, there is nothing to do
+            if (sameVersion && meta != null && length > 0 && !journalFile.exists() && file.length() == length)
+            {
+                totalBytes = range != null ? Math.min(range.getEnd(), length) - Math.min(range.getStart(), length) : length;
+                doneBytes.set(totalBytes);
+                log.info("Already have " + url + " in " + file);
+                return;
+            }
+
+            // If it changes while the job runs the segments get the whole stream back instead and fail
+            if (validator != null) request.setHeader("if-range", validator);
+
+            List<ByteRange> done = sameVersion && length > 0 && file.exists() ? readJournal(journalFile, length) : null;
+            boolean fresh = done == null;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if (fresh)
+            {
+                // The meta goes first, a meta without a journal says the file is complete
+                if (metaFile != null) metaFile.delete();
+                journalFile.delete();
+                done = new ArrayList<ByteRange>();
+                raf.setLength(0);
+            }
+            if (length > 0) raf.setLength(length);
+            channel = raf.getChannel();
+
+            if (length < 0)
+            {
+                pending.add(new ByteRange(0, -1));
+                log.info("Downloading " + url + " in one go, the server doesn't do ranges");
+                return;
+            }
+
+            journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true)));
+            if (fresh)
+            {
+                journal.write("length " + length + "\n");
+                journal.flush();
+            }
+
+            // Only written once the journal is there, a file with meta and no journal is complete
+            if (metaFile != null)
+            {
+                Writer metaOut = new FileWriter(metaFile);
+                metaOut.write("length " + length + "\n");
+                if (contentType != null) metaOut.write("content-type " + contentType + "\n");
+                if (etag != null) metaOut.write("etag " + etag + "\n");
+                if (lastModified != null) metaOut.write("last-modified " + lastModified + "\n");
+                metaOut.write("url " + url + "\n");
+                metaOut.close();
+            }
+
+            // Split what is left of the wanted part into segments
+            long first = range != null ? Math.min(range.getStart(), length) : 0;
+            long last = range != null ? Math.min(range.getEnd(), length) : length;
+            long position = first;
+            long doneCount = 0;
+            for (int i = 0; i <= done.size(); i++)
+            {
+                long end = i < done.size() ? Math.max(first, Math.min(done.get(i).getStart(), last)) : last;
+                for (long start = position; start < end; start += segmentSize)
+                    pending.add(new ByteRange(start, Math.min(start + segmentSize, end)));
+                if (i < done.size())
+                {
+                    position = Math.max(position, Math.max(first, Math.min(done.get(i).getEnd(), last)));
+                    doneCount += Math.max(0, Math.min(done.get(i).getEnd(), last) - Math.max(done.get(i).getStart(), first));
+                }
+            }
+            totalBytes = last - first;
+            doneBytes.set(doneCount);
+            log.info("Downloading " + url + " to " + file + ", " + totalBytes + " bytes" + (doneCount > 0 ? ", resuming with " + doneCount + " already done" : ""));
+        }
+
+        // Called with the FileDownloader locked
+        Segment nextSegment()
+        {
+            if (failed || cancelled || pending.isEmpty()) return null;
+            inProgress++;
+            return new Segment(this, pending.removeFirst());
+        }
+
+        /**
+         * Called by a connection thread when it is done with a segment
+         */
+        void segmentFinished(ByteRange range, boolean ok) throws IOException
+        {
+            // Before this segment stops counting, otherwise the last one to finish can close the
+            // journal while this is still writing to it
+            if (ok) writeJournal(range);
+
+            boolean complete = false;
+            synchronized (FileDownloader.this)
+            {
+                inProgress--;
+                if (!ok && !cancelled) failed = true;
+                complete = inProgress == 0 && (failed || cancelled || pending.isEmpty());
+            }
+            if (complete) finish();
+        }
+
+        /**
+         * Called by a connection thread that stopped part way through a segment to make way for a
+         * client. The part it got is kept and the rest goes back to be handed out again.
+         */
+        void segmentYielded(ByteRange range, long position) throws IOException
+        {
+            if (position > range.getStart())
+                writeJournal(new ByteRange(range.getStart(), position));
+
+            boolean complete = false;
+            synchronized (FileDownloader.this)
+            {
+                inProgress--;
+                if (!cancelled) pending.addFirst(new ByteRange(position, range.getEnd()));
+                complete = inProgress == 0 && cancelled;
+                FileDownloader.this.notifyAll();
+            }
+            if (complete) finish();
+        }
+
+        private void writeJournal(ByteRange range) throws IOException
+        {
+            if (journal == null) return;
+
+            // The data has to be on the disk before the journal says it is
+            synchronized (this)
+            {
+                channel.force(false);
+                journal.write(range.getStart() + " " + range.getEnd() + "\n");
+                journal.flush();
+            }
+        }
+
+        void finish()
+        {
+            try
+            {
+                if (channel != null) channel.close();
+                if (journal != null) journal.close();
+            }
+            catch (IOException e)
+            {}
+
+            if (cancelled)
+            {
+                state = "cancelled";
+                log.info("Cancelled " + url);
+            }
+            else if (!failed)
+            {
+                // The journal is kept for part of a file, it says which part is there
+                if (range == null) journalFile.delete();
+                state = "done";
+                log.info("Finished " + url);
+            }
+            else
+            {
+                state = "failed";
+                log.info("Failed " + url + ", run again to resume it");
+            }
+            fileFinished(this, !failed);
+        }
+    }
+
+    /**
+     * @param journalFile
+     * @param length length the file should be
+     * @return the segments the journal says are done, sorted, or null if there is no journal or it is
+     *         for a different length of file
+     */
+    static List<ByteRange> readJournal(File journalFile, long length)
+    {
+        if (!journalFile.exists()) return null;
+
+        List<ByteRange> done = new ArrayList<ByteRange>();
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new FileReader(journalFile));
+            String line = in.readLine();
+            if (line == null || !line.equals("length " + length)) return null;
+
+            while ((line = in.readLine()) != null)
+            {
+                // A line cut off by a crash or otherwise mangled is skipped, that segment is just
+                // fetched again. The rest of the journal is still good.
+                String parts[] = line.trim().split(" ");
+                if (parts.length != 2) continue;
+                ByteRange range = null;
+                try
+                {
+                    range = new ByteRange(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+                }
+                catch (NumberFormatException e)
+                {
+                    continue;
+                }
+                if (range.getStart() < 0 || range.getEnd() <= range.getStart() || range.getEnd() > length) continue;
+
+                int i = 0;
+                while (i < done.size() && done.get(i).getStart() < range.getStart())
+                    i++;
+                done.add(i, range);
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+            }
+            catch (IOException e)
+            {}
+        }
+        return done;
+    }
+
+    /**
+     * Part of a file for a connection thread to download. The end is -1 for the whole of a file whose
+     * length isn't known.
+     */
+    private static class Segment
+    {
+        FileDownload download = null;
+        ByteRange range = null;
+
+        Segment(FileDownload download, ByteRange range)
+        {
+            this.download = download;
+            this.range = range;
+        }
+    }
+
+    /**
+     * Takes segments from the files being downloaded and writes them into place
+     *
+     * @author conorhunt
+     *
+     */
+    private class ConnectionThread extends Thread
+    {
+        // What download() did with a segment
+        static final int DONE = 0;
+        static final int FAILED = 1;
+        static final int STOPPED = 2;
+
+        byte[] byteBuf = new byte[65536];
+
+        // Where the last STOPPED segment got to
+        long stoppedAt = 0;
+
+        public void run()
+        {
+            Segment segment = null;
+            while ((segment = nextSegment()) != null)
+            {
+                int result = download(segment.download, segment.range);
+                try
+                {
+                    if (result == STOPPED)
+                        segment.download.segmentYielded(segment.range, stoppedAt);
+                    else
+                        segment.download.segmentFinished(segment.range, result == DONE);
+                }
+                catch (IOException e)
+                {
+                    log.info("Failed to write journal for " + segment.download.url + ": " + e);
+                }
+            }
+        }
+
+        /**
+         * Download a segment into the file. Failed attempts are retried from where they got to.
+         *
+         * @return DONE, FAILED if it couldn't be downloaded or STOPPED if the job was cancelled or a
+         *         client needs the bandwidth. stoppedAt is then set to how far it got.
+         */
+        private int download(FileDownload download, ByteRange range)
+        {
+            OriginCapabilities origin = download.origin;
+            long position = range.getStart();
+            long end = range.getEnd();
+            int failures = 0;
+            while (end < 0 || position < end)
+            {
+                long attemptStartPosition = position;
+                HttpResponse response = null;
+                try
+                {
+                    long requestTime = System.currentTimeMillis();
+                    if (end < 0)
+                    {
+                        response = download.request.execute();
+                        if (response.getResponseCode() != 200) throw new IOException("response code " + response.getResponseCode());
+                    }
+                    else
+                    {
+                        response = download.request.execute(position, end - 1, origin.getConnectTimeout(), origin.getReadTimeout(byteBuf.length));
+                        if (response.getResponseCode() != 206 || response.getContentRangeStart() != position)
+                            throw new IOException("unexpected response " + response.getResponseCode() + " to range request");
+                    }
+                    origin.recordTtfb(System.currentTimeMillis() - requestTime);
+
+                    long blockStartTime = System.currentTimeMillis();
+                    InputStream in = response.getInputStream();
+                    int bytesRead = -2;
+                    while ((end < 0 || position < end)
+                            && (bytesRead = in.read(byteBuf, 0, end < 0 ? byteBuf.length : (int) Math.min(byteBuf.length, end - position))) >= 0)
+                    {
+                        if (download.readBucket != null)
+                            download.readBucket.take(bytesRead, false);
+                        ByteBuffer data = ByteBuffer.wrap(byteBuf, 0, bytesRead);
+                        while (data.hasRemaining())
+                            download.channel.write(data, position + data.position());
+                        position += bytesRead;
+                        download.doneBytes.addAndGet(bytesRead);
+
+                        // A file without a length can't be picked up again part way through
+                        if (end >= 0 && position < end && (download.cancelled || (background && ProxyThread.getLiveClients() > 0)))
+                        {
+                            stoppedAt = position;
+                            return STOPPED;
+                        }
+                    }
+                    origin.recordThroughput(position - attemptStartPosition, System.currentTimeMillis() - blockStartTime);
+
+                    // Without a length the end of the connection is the end of the file
+                    if (end < 0) return DONE;
+                }
+                catch (IOException e)
+                {
+                    log.debug("Download " + e + " " + download.url + " @ " + position);
+                    // The whole file has to be fetched again if it can't be resumed
+                    if (end < 0)
+                    {
+                        download.doneBytes.addAndGet(range.getStart() - position);
+                        position = range.getStart();
+                    }
+                }
+                finally
+                {
+                    try
+                    {
+                        if (response != null) response.close();
+                    }
+                    catch (IOException e)
+                    {}
+                }
+
+                if (end >= 0 && position >= end) break;
+                if (download.cancelled) return FAILED;
+
+                if (position > attemptStartPosition)
+                    failures = 0;
+                if (++failures > MAX_RETRIES)
+                    return FAILED;
+
+                long wait = BACKOFF_BASE << (failures - 1);
+                wait += (long) (Math.random() * wait);
+                try
+                {
+                    Thread.sleep(wait);
+                }
+                catch (InterruptedException e)
+                {}
+            }
+            return DONE;
+        }
+    }
+}
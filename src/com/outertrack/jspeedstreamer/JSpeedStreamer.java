@@ -2,8 +2,12 @@ package com.outertrack.jspeedstreamer;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
+import com.outertrack.jspeedstreamer.http.HostResolver;
 import com.outertrack.jspeedstreamer.utils.MultiLogger;
 
 /**
@@ -21,20 +25,91 @@ public class JSpeedStreamer
     
     public static void main(String args[])
     {
-        ServerSocket server = null;
+        ServerSocketChannel server = null;
         HashMap options = parseCommandLine(args);
         
         if(options.containsKey("PORT"))
             port = ((Integer)options.get("PORT")).intValue();
         
+        if(options.containsKey("DNSTTL"))
+            HostResolver.setTtl(((Integer)options.get("DNSTTL")).intValue() * 1000L);
+        
+        // Seed the origin profiles with what was learnt in previous runs
+        String profileFile = System.getProperty("user.home") + File.separator + ".jspeedstreamer_profiles";
+        if(options.containsKey("PROFILES"))
+            profileFile = (String)options.get("PROFILES");
+        if(!profileFile.equals("none"))
+            OriginCapabilities.load(profileFile);
+        
+        // Bandwidth is shared out between the sessions if any of the rates are set
+        BandwidthShaper shaper = null;
+        if(options.containsKey("RATE") || options.containsKey("RATEORIGIN") || options.containsKey("RATESESSION"))
+        {
+            int globalRate = options.containsKey("RATE") ? ((Integer)options.get("RATE")).intValue() : 0;
+            int originRate = options.containsKey("RATEORIGIN") ? ((Integer)options.get("RATEORIGIN")).intValue() : 0;
+            int sessionRate = options.containsKey("RATESESSION") ? ((Integer)options.get("RATESESSION")).intValue() : 0;
+            shaper = new BandwidthShaper(globalRate, originRate, sessionRate);
+            options.put("SHAPER", shaper);
+        }
+        
+        // One prefetcher and segment cache is shared by all of the connections
+        if(options.containsKey("PREFETCH"))
+        {
+            int segments = ((Integer)options.get("PREFETCH")).intValue();
+            int cacheSize = options.containsKey("PREFETCHMEM") ? ((Integer)options.get("PREFETCHMEM")).intValue() : 64000000;
+            SegmentPrefetcher prefetcher = new SegmentPrefetcher(segments, cacheSize);
+            prefetcher.setShaper(shaper);
+            options.put("PREFETCHER", prefetcher);
+        }
+        
+        // Download connections can be spread over several local addresses
+        if(options.containsKey("BIND"))
+        {
+            try
+            {
+                options.put("ADDRESSPOOL", new LocalAddressPool((String)options.get("BIND")));
+            }
+            catch (IOException e)
+            {
+                System.err.println("Bad -bind: " + e.getMessage());
+                return;
+            }
+        }
+        
+        // Prefetch jobs submitted through the control API are fetched into the cache directory
+        if(options.containsKey("CACHEDIR"))
+        {
+            int threads = options.containsKey("CACHETHREADS") ? ((Integer)options.get("CACHETHREADS")).intValue() : 4;
+            int files = options.containsKey("FILES") ? ((Integer)options.get("FILES")).intValue() : 2;
+            int segmentSize = options.containsKey("MAXSEG") ? ((Integer)options.get("MAXSEG")).intValue() : 1000000;
+            WarmupCache warmupCache = new WarmupCache((String)options.get("CACHEDIR"), threads, files, segmentSize);
+            warmupCache.getDownloader().setShaper(shaper);
+            options.put("WARMUPCACHE", warmupCache);
+        }
+        
+        // URLs on the command line are downloaded to files instead of running the proxy
+        if(options.containsKey("URLS"))
+        {
+            int threads = options.containsKey("THREADS") ? ((Integer)options.get("THREADS")).intValue() : 4;
+            int files = options.containsKey("FILES") ? ((Integer)options.get("FILES")).intValue() : 2;
+            int segmentSize = options.containsKey("MAXSEG") ? ((Integer)options.get("MAXSEG")).intValue() : 1000000;
+            FileDownloader downloader = new FileDownloader((List)options.get("URLS"), (String)options.get("OUTDIR"), threads, files, segmentSize);
+            downloader.setShaper(shaper);
+            boolean ok = downloader.run();
+            OriginCapabilities.save();
+            System.exit(ok ? 0 : 1);
+        }
+        
         log.info("Starting JStreamSpeeder on part " + port + ". Press CTRL-C to end");
         log.info("JStreamSpeeder waiting for connections");
         try
         {
-            server = new ServerSocket(port);
+            // Connections are accepted through a channel so that ProxyThreads can write to them with gather writes
+            server = ServerSocketChannel.open();
+            server.socket().bind(new InetSocketAddress(port));
             while (true)
             {
-                Socket client = server.accept();
+                Socket client = server.accept().socket();
                 log.info("Received connection");
                 ProxyThread t = new ProxyThread(client, options);
                 t.start();
@@ -72,14 +147,58 @@ public class JSpeedStreamer
               hash.put("MAXSEG", Integer.parseInt(args[++i]));
             else if(arg.equals("-min_seg"))
               hash.put("MINSEG", Integer.parseInt(args[++i]));
+            else if(arg.equals("-high_mark"))
+              hash.put("HIGHMARK", Integer.parseInt(args[++i]));
+            else if(arg.equals("-low_mark"))
+              hash.put("LOWMARK", Integer.parseInt(args[++i]));
             else if(arg.equals("-threads"))
               hash.put("THREADS", Integer.parseInt(args[++i]));
+            else if(arg.equals("-prefetch"))
+              hash.put("PREFETCH", Integer.parseInt(args[++i]));
+            else if(arg.equals("-prefetch_mem"))
+              hash.put("PREFETCHMEM", Integer.parseInt(args[++i]));
+            else if(arg.equals("-broadcast"))
+              hash.put("BROADCAST", Integer.parseInt(args[++i]));
+            else if(arg.equals("-profiles"))
+              hash.put("PROFILES", args[++i]);
+            else if(arg.equals("-bind"))
+              hash.put("BIND", args[++i]);
+            else if(arg.equals("-rate"))
+              hash.put("RATE", Integer.parseInt(args[++i]));
+            else if(arg.equals("-rate_origin"))
+              hash.put("RATEORIGIN", Integer.parseInt(args[++i]));
+            else if(arg.equals("-rate_session"))
+              hash.put("RATESESSION", Integer.parseInt(args[++i]));
+            else if(arg.equals("-dns_ttl"))
+              hash.put("DNSTTL", Integer.parseInt(args[++i]));
+            else if(arg.equals("-prewarm"))
+              hash.put("PREWARM", args[++i]);
+            else if(arg.equals("-cache_dir"))
+              hash.put("CACHEDIR", args[++i]);
+            else if(arg.equals("-cache_threads"))
+              hash.put("CACHETHREADS", Integer.parseInt(args[++i]));
+            else if(arg.equals("-follow"))
+              hash.put("FOLLOW", Integer.parseInt(args[++i]));
+            else if(arg.equals("-files"))
+              hash.put("FILES", Integer.parseInt(args[++i]));
             else if(arg.equals("-outdir"))
               hash.put("OUTDIR", args[++i]);
+            else if(arg.equals("-archive_queue"))
+              hash.put("ARCHIVEQUEUE", Integer.parseInt(args[++i]));
+            else if(arg.equals("-archive_policy"))
+              hash.put("ARCHIVEPOLICY", args[++i]);
+            else if(arg.equals("-archive_prealloc"))
+              hash.put("ARCHIVEPREALLOC", args[++i]);
             else {
               System.err.print("Unknown argument: " + arg);
             }
           }
+          else
+          {
+            if(!hash.containsKey("URLS"))
+              hash.put("URLS", new ArrayList());
+            ((List)hash.get("URLS")).add(arg);
+          }
         }
         return hash;
     }
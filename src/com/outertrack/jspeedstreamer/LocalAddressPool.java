@@ -0,0 +1,152 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * The local addresses that download threads can make their connections from, for boxes with
+ * several uplinks. Binding each connection to one of them makes it leave through that link, so a
+ * single stream can use all of the links at once.
+ *
+ * Each new connection goes out of the address with the fewest connections for its measured
+ * throughput. The connections end up spread across the links in proportion to how fast they are.
+ *
+ * @author conorhunt
+ *
+ */
+public class LocalAddressPool
+{
+    private static MultiLogger log = MultiLogger.getLogger(LocalAddressPool.class);
+
+    // Weight given to each new throughput measurement
+    private static final double SMOOTHING = 0.3;
+
+    private List<Link> links = new ArrayList<Link>();
+
+    /**
+     * @param spec comma separated list of local addresses or interface names
+     * @throws IOException if one of them can't be found
+     */
+    public LocalAddressPool(String spec) throws IOException
+    {
+        String names[] = spec.split(",");
+        for (int i = 0; i < names.length; i++)
+        {
+            String name = names[i].trim();
+            if (name.length() == 0) continue;
+
+            InetAddress address = getInterfaceAddress(name);
+            if (address == null)
+                address = InetAddress.getByName(name);
+            links.add(new Link(address));
+            log.info("Binding connections to " + address.getHostAddress() + " (" + name + ")");
+        }
+        if (links.isEmpty()) throw new IOException("No local addresses in " + spec);
+    }
+
+    /**
+     * @return the first address of the interface with the name, IPv4 if it has one. null if there is
+     *         no interface with the name
+     */
+    private static InetAddress getInterfaceAddress(String name) throws IOException
+    {
+        NetworkInterface networkInterface = NetworkInterface.getByName(name);
+        if (networkInterface == null) return null;
+
+        InetAddress first = null;
+        Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+        while (addresses.hasMoreElements())
+        {
+            InetAddress address = addresses.nextElement();
+            if (address instanceof Inet4Address) return address;
+            if (first == null) first = address;
+        }
+        if (first == null) throw new IOException("Interface " + name + " has no addresses");
+        return first;
+    }
+
+    /**
+     * Pick the address for a new connection. Call release() when the connection is finished with.
+     *
+     * @return
+     */
+    public synchronized InetAddress acquire()
+    {
+        // Links that haven't been measured yet are treated as average so that they get tried
+        double total = 0;
+        int measured = 0;
+        for (int i = 0; i < links.size(); i++)
+        {
+            if (links.get(i).throughput > 0)
+            {
+                total += links.get(i).throughput;
+                measured++;
+            }
+        }
+        double average = measured > 0 ? total / measured : 1;
+
+        Link best = null;
+        double bestLoad = Double.MAX_VALUE;
+        for (int i = 0; i < links.size(); i++)
+        {
+            Link link = links.get(i);
+            double load = (link.activeConnections + 1) / (link.throughput > 0 ? link.throughput : average);
+            if (load < bestLoad)
+            {
+                best = link;
+                bestLoad = load;
+            }
+        }
+        best.activeConnections++;
+        return best.address;
+    }
+
+    /**
+     * A connection from acquire() is finished with
+     *
+     * @param address
+     * @param bytes number of bytes the connection downloaded
+     * @param millis how long it was open for
+     */
+    public synchronized void release(InetAddress address, long bytes, long millis)
+    {
+        for (int i = 0; i < links.size(); i++)
+        {
+            Link link = links.get(i);
+            if (!link.address.equals(address)) continue;
+
+            link.activeConnections--;
+            // Tiny transfers are mostly connection setup and say little about the link
+            if (bytes >= 100000 && millis > 0)
+            {
+                double speed = bytes * 1000.0 / millis;
+                link.throughput = link.throughput > 0 ? link.throughput * (1 - SMOOTHING) + speed * SMOOTHING : speed;
+            }
+            return;
+        }
+    }
+
+    /**
+     * One local address and how it is doing
+     */
+    private static class Link
+    {
+        InetAddress address = null;
+        int activeConnections = 0;
+
+        // Bytes per second for each connection, 0 until it has been measured
+        double throughput = 0;
+
+        Link(InetAddress address)
+        {
+            this.address = address;
+        }
+    }
+}
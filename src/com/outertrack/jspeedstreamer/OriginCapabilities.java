@@ -0,0 +1,507 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.http.HttpResponse;
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * What we have learnt about an origin server: whether it handles Range requests, how many
+ * connections it will put up with and how fast a single connection to it is.
+ *
+ * ProxyThreads use this to decide whether splitting a download between threads pays off, how many
+ * threads to start with and how big the blocks should be. There is one instance per host:port, shared
+ * by every ProxyThread.
+ *
+ * Everything learnt is saved to a profile file so that the next run starts with it instead of
+ * ramping up from scratch.
+ *
+ * @author conorhunt
+ *
+ */
+public class OriginCapabilities
+{
+    private static MultiLogger log = MultiLogger.getLogger(OriginCapabilities.class);
+
+    public static final int UNKNOWN = 0;
+    public static final int YES = 1;
+    public static final int NO = 2;
+
+    // Splitting a download costs a round trip per block, so it is only worth it if a single connection
+    // would take at least this long
+    private static final double MIN_SPLIT_SECONDS = 2.0;
+
+    // Until we have measured an origin anything this big is split
+    private static final long DEFAULT_SPLIT_SIZE = 5000000;
+
+    // Bounds on the adaptive timeouts, and the timeout used before anything is known about an origin
+    private static final int MIN_TIMEOUT = 500;
+    private static final int MAX_TIMEOUT = 30000;
+    private static final int DEFAULT_TIMEOUT = 5000;
+
+    // Aim for blocks that take this many times the request latency to download so that the cost of
+    // a request per block stays small
+    private static final int BLOCK_LATENCY_MULTIPLE = 10;
+
+    // A connection limit or a lack of range support can be learnt from a single bad response, the
+    // origin may only have been busy. After this long without another one the origin gets a connection
+    // back, or is probed for ranges again.
+    private static final long RELEARN_INTERVAL = 10 * 60 * 1000;
+
+    private static HashMap<String, OriginCapabilities> origins = new HashMap<String, OriginCapabilities>();
+
+    // File the profiles are saved in, null if they aren't saved
+    private static String profileFile = null;
+
+    private String origin = null;
+    private int rangeSupport = UNKNOWN;
+    private int maxConnections = Integer.MAX_VALUE;
+
+    // When range support was found missing and when the connection limit was last lowered or raised
+    private long rangeSupportTime = 0;
+    private long connectionLimitTime = 0;
+
+    // Moving averages of the time to the response headers, how much that varies and the throughput of a
+    // single connection
+    private long ttfb = -1;
+    private long ttfbVariation = 0;
+    private long throughput = -1;
+
+    // Moving average of the length of the objects fetched from the origin
+    private long objectSize = -1;
+
+    // Moving average of the total download speed of split downloads by the number of connections used
+    private HashMap<Integer, Long> sessionThroughput = new HashMap<Integer, Long>();
+
+    private OriginCapabilities(String origin)
+    {
+        this.origin = origin;
+    }
+
+    /**
+     * @param origin host:port of the server
+     * @return the capabilities of the origin, created empty the first time it is seen
+     */
+    public static OriginCapabilities get(String origin)
+    {
+        synchronized (origins)
+        {
+            OriginCapabilities capabilities = origins.get(origin);
+            if (capabilities == null)
+            {
+                capabilities = new OriginCapabilities(origin);
+                origins.put(origin, capabilities);
+            }
+            return capabilities;
+        }
+    }
+
+    /**
+     * Learn what we can about range support from a response. A 206 or an Accept-Ranges: bytes header
+     * means the origin handles ranges, Accept-Ranges: none means it doesn't.
+     */
+    public synchronized void recordResponse(HttpResponse response)
+    {
+        String acceptRanges = response.getHeader("accept-ranges");
+        if (response.getResponseCode() == 206 || (acceptRanges != null && acceptRanges.equalsIgnoreCase("bytes")))
+            rangeSupport = YES;
+        else if (acceptRanges != null && acceptRanges.equalsIgnoreCase("none"))
+            setRangeSupport(false);
+    }
+
+    public synchronized void setRangeSupport(boolean supported)
+    {
+        if (supported != (rangeSupport == YES)) log.debug(origin + " range support: " + supported);
+        rangeSupport = supported ? YES : NO;
+        if (!supported) rangeSupportTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return YES, NO or UNKNOWN. A NO that is older than RELEARN_INTERVAL goes back to UNKNOWN so
+     *         that the origin is probed again.
+     */
+    public synchronized int getRangeSupport()
+    {
+        relearn();
+        return rangeSupport;
+    }
+
+    /**
+     * Called when the origin answers 503/429 with this many connections open. The limit is raised
+     * again one connection at a time, see relearn().
+     */
+    public synchronized void recordConnectionLimit(int connections)
+    {
+        int limit = Math.max(1, connections);
+        connectionLimitTime = System.currentTimeMillis();
+        if (limit < maxConnections)
+        {
+            log.debug(origin + " tolerates at most " + limit + " connections");
+            maxConnections = limit;
+        }
+    }
+
+    public synchronized int getMaxConnections()
+    {
+        relearn();
+        return maxConnections;
+    }
+
+    /**
+     * Forgets limits that haven't been seen again for RELEARN_INTERVAL. Range support goes back to
+     * unknown and the connection limit goes up by one each interval until it is hit again.
+     */
+    private void relearn()
+    {
+        long now = System.currentTimeMillis();
+        if (rangeSupport == NO && now - rangeSupportTime > RELEARN_INTERVAL)
+        {
+            log.debug(origin + " range support: probing again");
+            rangeSupport = UNKNOWN;
+        }
+        if (maxConnections != Integer.MAX_VALUE && now - connectionLimitTime > RELEARN_INTERVAL)
+        {
+            maxConnections++;
+            connectionLimitTime = now;
+            log.debug(origin + " trying " + maxConnections + " connections again");
+        }
+    }
+
+    public synchronized void recordTtfb(long millis)
+    {
+        if (ttfb < 0)
+        {
+            ttfb = millis;
+            ttfbVariation = millis / 2;
+        }
+        else
+        {
+            ttfbVariation = (ttfbVariation * 3 + Math.abs(ttfb - millis)) / 4;
+            ttfb = (ttfb * 7 + millis * 3) / 10;
+        }
+    }
+
+    public synchronized long getTtfb()
+    {
+        return ttfb;
+    }
+
+    /**
+     * How long to wait for a connection or for the response headers. Like TCP's retransmission
+     * timeout this is the average latency plus four times its variation.
+     */
+    public synchronized int getConnectTimeout()
+    {
+        if (ttfb < 0) return DEFAULT_TIMEOUT;
+        return (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, ttfb + 4 * ttfbVariation));
+    }
+
+    /**
+     * How long to wait for a read on a connection. The response headers have to arrive within this
+     * time too, so it is the connect timeout plus however long it would take to fill a read of
+     * readSize bytes at a quarter of the usual throughput.
+     */
+    public synchronized int getReadTimeout(int readSize)
+    {
+        if (ttfb < 0) return DEFAULT_TIMEOUT;
+
+        long timeout = ttfb + 4 * ttfbVariation;
+        if (throughput > 0) timeout += readSize * 4000L / throughput;
+        return (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+
+    /**
+     * Record the throughput of a single connection. Transfers that are too small to say anything
+     * about the throughput are ignored.
+     *
+     * @param bytes
+     * @param millis time taken after the response headers arrived
+     */
+    public synchronized void recordThroughput(long bytes, long millis)
+    {
+        if (bytes < 100000 || millis <= 0) return;
+        long bytesPerSecond = bytes * 1000 / millis;
+        throughput = throughput < 0 ? bytesPerSecond : (throughput * 7 + bytesPerSecond * 3) / 10;
+    }
+
+    public synchronized long getThroughput()
+    {
+        return throughput;
+    }
+
+    /**
+     * The cost model. Splitting pays off when a single connection would take long enough that the
+     * extra requests are lost in the noise.
+     *
+     * @param length length of the download or -1 if it is unknown
+     * @return true if the download should be split between threads, for an unknown length true if
+     *         it is worth a range probe to find out the length
+     */
+    public synchronized boolean isSplitWorthwhile(long length)
+    {
+        relearn();
+        if (rangeSupport == NO) return false;
+
+        // Unknown lengths are only worth a probe on an origin whose objects are usually big enough
+        if (length < 0) return isSplitLikely();
+        if (throughput <= 0) return length > DEFAULT_SPLIT_SIZE;
+
+        double requestSeconds = Math.max(ttfb, 0) / 1000.0;
+        double singleSeconds = (double) length / throughput + requestSeconds;
+        return singleSeconds > MIN_SPLIT_SECONDS && singleSeconds > 4 * requestSeconds;
+    }
+
+    /**
+     * Record the length of an object fetched from the origin
+     *
+     * @param length
+     */
+    public synchronized void recordObjectSize(long length)
+    {
+        if (length <= 0) return;
+        objectSize = objectSize < 0 ? length : (objectSize * 7 + length * 3) / 10;
+    }
+
+    /**
+     * Whether it is worth opening the connections for a split download before the response headers
+     * say how long the object is. Only for origins whose objects are usually big enough to split,
+     * for small objects and segments the connections would just be closed again unused.
+     */
+    public synchronized boolean isSplitLikely()
+    {
+        return objectSize > 0 && getRangeSupport() == YES && isSplitWorthwhile(objectSize);
+    }
+
+    /**
+     * Record how fast a split download went in total
+     *
+     * @param connections number of connections the download used
+     * @param bytesPerSecond
+     */
+    public synchronized void recordSession(int connections, long bytesPerSecond)
+    {
+        if (bytesPerSecond <= 0) return;
+        Long old = sessionThroughput.get(connections);
+        sessionThroughput.put(connections, old == null ? bytesPerSecond : (old.longValue() * 7 + bytesPerSecond * 3) / 10);
+    }
+
+    /**
+     * The best number of connections is the smallest that gets within 10% of the fastest speed seen.
+     * If that is also the most we have tried then one more is tried next time in case it is faster.
+     *
+     * @return the number of connections to use or -1 if nothing has been learnt yet
+     */
+    private int getBestConnectionCount(int maxThreads)
+    {
+        if (sessionThroughput.isEmpty()) return -1;
+
+        long fastest = 0;
+        int most = 0;
+        Iterator<Map.Entry<Integer, Long>> it = sessionThroughput.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Integer, Long> entry = it.next();
+            fastest = Math.max(fastest, entry.getValue().longValue());
+            most = Math.max(most, entry.getKey().intValue());
+        }
+
+        int best = most;
+        it = sessionThroughput.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Integer, Long> entry = it.next();
+            if (entry.getValue().longValue() * 10 >= fastest * 9 && entry.getKey().intValue() < best)
+                best = entry.getKey().intValue();
+        }
+
+        if (best == most && most < maxThreads) best++;
+        return best;
+    }
+
+    /**
+     * Works out a block size from the request latency and single connection throughput
+     *
+     * @param minBlockSize
+     * @param maxBlockSize
+     * @return the block size or -1 if the origin hasn't been measured yet
+     */
+    public synchronized int getBlockSize(int minBlockSize, int maxBlockSize)
+    {
+        if (ttfb <= 0 || throughput <= 0) return -1;
+
+        long size = throughput * ttfb * BLOCK_LATENCY_MULTIPLE / 1000;
+        return (int) Math.max(minBlockSize, Math.min(maxBlockSize, size));
+    }
+
+    /**
+     * @param length length of the download
+     * @param maxThreads the most threads a download may use
+     * @param blockSize size of the first blocks handed out
+     * @return the number of threads to start the download with
+     */
+    public synchronized int getConnectionCount(long length, int maxThreads, int blockSize)
+    {
+        relearn();
+        int count = Math.min(maxThreads, maxConnections);
+        int best = getBestConnectionCount(maxThreads);
+        if (best > 0) count = Math.min(count, best);
+
+        // No point in having threads with nothing to do
+        if (length > 0 && blockSize > 0)
+            count = (int) Math.min(count, Math.max(1, length / blockSize));
+        return count;
+    }
+
+    /**
+     * Load saved profiles and remember the file so that they can be saved back to it
+     *
+     * @param file
+     */
+    public static void load(String file)
+    {
+        profileFile = file;
+        Properties properties = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream(file);
+            properties.load(in);
+        }
+        catch (FileNotFoundException e)
+        {
+            return;
+        }
+        catch (IOException e)
+        {
+            log.info("Could not read origin profiles from " + file + ": " + e);
+            return;
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+            }
+            catch (IOException e)
+            {}
+        }
+
+        Iterator<Object> it = properties.keySet().iterator();
+        while (it.hasNext())
+        {
+            String key = (String) it.next();
+            int dot = key.lastIndexOf('.');
+            if (dot < 0) continue;
+
+            OriginCapabilities capabilities = get(key.substring(0, dot));
+            String name = key.substring(dot + 1);
+            try
+            {
+                long value = Long.parseLong(properties.getProperty(key));
+                synchronized (capabilities)
+                {
+                    if (name.equals("rangeSupport"))
+                        capabilities.rangeSupport = (int) value;
+                    else if (name.equals("maxConnections"))
+                        capabilities.maxConnections = (int) value;
+                    else if (name.equals("rangeSupportTime"))
+                        capabilities.rangeSupportTime = value;
+                    else if (name.equals("connectionLimitTime"))
+                        capabilities.connectionLimitTime = value;
+                    else if (name.equals("ttfb"))
+                        capabilities.ttfb = value;
+                    else if (name.equals("ttfbVariation"))
+                        capabilities.ttfbVariation = value;
+                    else if (name.equals("throughput"))
+                        capabilities.throughput = value;
+                    else if (name.equals("objectSize"))
+                        capabilities.objectSize = value;
+                    else if (name.startsWith("session"))
+                        capabilities.sessionThroughput.put(Integer.valueOf(name.substring(7)), value);
+                }
+            }
+            catch (NumberFormatException e)
+            {}
+        }
+        log.info("Loaded " + origins.size() + " origin profiles from " + file);
+    }
+
+    /**
+     * Save all of the profiles to the file they were loaded from. Every session saves when it ends,
+     * so this is synchronized to stop them writing the temporary file at the same time.
+     */
+    public static synchronized void save()
+    {
+        if (profileFile == null) return;
+
+        Properties properties = new Properties();
+        synchronized (origins)
+        {
+            Iterator<OriginCapabilities> it = origins.values().iterator();
+            while (it.hasNext())
+            {
+                OriginCapabilities capabilities = it.next();
+                synchronized (capabilities)
+                {
+                    String prefix = capabilities.origin + ".";
+                    properties.setProperty(prefix + "rangeSupport", String.valueOf(capabilities.rangeSupport));
+                    properties.setProperty(prefix + "maxConnections", String.valueOf(capabilities.maxConnections));
+                    properties.setProperty(prefix + "rangeSupportTime", String.valueOf(capabilities.rangeSupportTime));
+                    properties.setProperty(prefix + "connectionLimitTime", String.valueOf(capabilities.connectionLimitTime));
+                    properties.setProperty(prefix + "ttfb", String.valueOf(capabilities.ttfb));
+                    properties.setProperty(prefix + "ttfbVariation", String.valueOf(capabilities.ttfbVariation));
+                    properties.setProperty(prefix + "throughput", String.valueOf(capabilities.throughput));
+                    properties.setProperty(prefix + "objectSize", String.valueOf(capabilities.objectSize));
+
+                    Iterator<Map.Entry<Integer, Long>> sessions = capabilities.sessionThroughput.entrySet().iterator();
+                    while (sessions.hasNext())
+                    {
+                        Map.Entry<Integer, Long> entry = sessions.next();
+                        properties.setProperty(prefix + "session" + entry.getKey(), String.valueOf(entry.getValue()));
+                    }
+                }
+            }
+        }
+
+        // Write to a temporary file first and move it over the profile in one go, so a crash can't
+        // leave a half written profile or none at all
+        File file = new File(profileFile);
+        File tempFile = new File(profileFile + ".tmp");
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream(tempFile);
+            properties.store(out, "JSpeedStreamer origin profiles");
+            out.close();
+            out = null;
+            try
+            {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            log.info("Could not save origin profiles to " + profileFile + ": " + e);
+        }
+        finally
+        {
+            try
+            {
+                if (out != null) out.close();
+            }
+            catch (IOException e)
+            {}
+        }
+    }
+}
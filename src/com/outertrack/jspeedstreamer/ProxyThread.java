@@ -1,12 +1,25 @@
 package com.outertrack.jspeedstreamer;
 
 import com.outertrack.jspeedstreamer.http.*;
+import com.outertrack.jspeedstreamer.utils.ArchiveWriter;
+import com.outertrack.jspeedstreamer.utils.BroadcastBuffer;
 import com.outertrack.jspeedstreamer.utils.CircularDownloadBuffer;
+import com.outertrack.jspeedstreamer.utils.DownloadBuffer;
 import com.outertrack.jspeedstreamer.utils.MultiLogger;
+import com.outertrack.jspeedstreamer.utils.ProxyEvents;
+import com.outertrack.jspeedstreamer.utils.SegmentCache;
+import com.outertrack.jspeedstreamer.utils.TokenBucket;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the 'manager' thread that manages multiple download threads downloading multiple chunks
@@ -23,12 +36,28 @@ public class ProxyThread extends Thread
     private Socket socket = null;
     
     // This is a notification flag that is set when the d/l is finished or something goes wrong
-    private boolean downloadFinished = false;
+    private volatile boolean downloadFinished = false;
+    
+    // Set as soon as the client is found to have gone, see cancelSession()
+    private volatile boolean clientGone = false;
+    private ClientWatcher clientWatcher = null;
        
     // Size of the content we are downloading
-    private long contentLength = -1;
+    private volatile long contentLength = -1;
     private long bytesSent = 0;
     
+    // Tail-follow of streams that are still growing. followTimeout is how long a stream can go without
+    // growing before it is taken to be finished, 0 turns following off. While following, contentLength
+    // is Long.MAX_VALUE and fetchLength is as far as the stream is known to go. Blocks are only
+    // handed out up to fetchLength, for other downloads it is the same as contentLength.
+    private long followTimeout = 0;
+    private volatile boolean following = false;
+    private volatile long fetchLength = -1;
+    private long lastGrowthTime = 0;
+    
+    // The thread that is fetching at the live edge of a followed stream, the others wait
+    private DownloadThread edgeThread = null;
+    
     // Block size that each thread downloads
     private int maxBlockSize = 1000000;
     private int blockSize = 200000;
@@ -37,20 +66,80 @@ public class ProxyThread extends Thread
     // byte position in the stream that has been allocated for download
     private long serverReadPosition = 0;    
     
-    // Number of parallel threads to use
+    // Ranges that were handed out to a thread but never arrived (server closed early, timeouts during
+    // multi range requests). These are handed out again before any new blocks since the client can't
+    // read past them.
+    private List<ByteRange> missingRanges = new ArrayList<ByteRange>();
+    
+    // Several missing ranges are fetched with one multi range request until the server shows that it
+    // doesn't support them, then they go back to being fetched one at a time
+    private boolean multiRangeSupported = true;
+    private static final int MAX_RANGES_PER_REQUEST = 16;
+    
+    // Maximum number of parallel threads to use, and how many of the threads for this download are still going
     private int downloadThreadCount = 4;
+    private int activeThreadCount = 0;
+    
+    // What we know about the server this request goes to
+    private OriginCapabilities origin = null;
+    
+    // Local addresses to spread the download connections over, null unless -bind is set
+    private LocalAddressPool addressPool = null;
+    
+    // Rate limits for this session's reads from the origin and writes to the client, null unless a -rate option is set
+    private BandwidthShaper shaper = null;
+    private TokenBucket readBucket = null;
+    private TokenBucket writeBucket = null;
+    
+    // Open the download connections ahead of time, all at once
+    private boolean prewarm = true;
     DownloadThread downloadThreads[] = null;
  
-    // The buffer gets allocated only when needed
-    CircularDownloadBuffer buffer = null;
+    // The buffer gets allocated only when needed. When sharing a download it is the broadcast's buffer
+    // and the client reads through broadcastReader, otherwise clientBuffer is the same buffer.
+    DownloadBuffer buffer = null;
+    CircularDownloadBuffer clientBuffer = null;
     private int bufferSize = 6000000;
     
-    // Directory to write streamed output to
+    // Flow control. When the data handed out ahead of the client reaches the high watermark no new
+    // blocks are handed out until the client has read it down to the low watermark. -1 means work
+    // them out from the buffer size.
+    private long highWatermark = -1;
+    private long lowWatermark = -1;
+    private boolean fetchPaused = false;
+    
+    // Directory to write streamed output to, and how the writes are queued for the disk
     private String outputDir = null;
+    private int archiveQueueSize = 16000000;
+    private int archivePolicy = ArchiveWriter.BLOCK;
+    private boolean archivePreallocate = false;
+    
+    // Shared HLS/DASH segment prefetcher, null unless -prefetch is on
+    private SegmentPrefetcher prefetcher = null;
+    
+    // Sharing a download with other clients of the same URL. broadcastLag is how far behind the
+    // fastest client a client can fall before it is given its own download, 0 means don't share.
+    private long broadcastLag = 0;
+    private BroadcastSession broadcast = null;
+    private BroadcastBuffer.Reader broadcastReader = null;
+    
+    // Set when this thread takes over a client that fell behind in a broadcast
+    private HttpRequest resumeRequest = null;
+    private long resumePosition = 0;
+    
+    private HashMap options = null;
+    
+    // Streams fetched ahead of time by prefetch jobs, null unless -cache_dir is set
+    private WarmupCache warmupCache = null;
+    
+    // Number of clients whose requests are going to servers, background jobs wait while there are any
+    private static AtomicInteger liveClients = new AtomicInteger();
+    private boolean live = false;
        
     public ProxyThread(Socket s, HashMap options)
     {
         this.socket = s;
+        this.options = options;
         
         Integer value = (Integer) options.get("MAXSEG");
         if(value != null)
@@ -68,9 +157,95 @@ public class ProxyThread extends Thread
         if(value != null)
           bufferSize = value.intValue();
         
+        value = (Integer) options.get("HIGHMARK");
+        if(value != null)
+          highWatermark = value.intValue();
+        
+        value = (Integer) options.get("LOWMARK");
+        if(value != null)
+          lowWatermark = value.intValue();
+        
+        // The high watermark has to be inside the buffer, otherwise threads would block mid block
+        // waiting for space with their connection half read
+        if(highWatermark < 0 || highWatermark >= bufferSize)
+          highWatermark = bufferSize * 9L / 10;
+        if(lowWatermark < 0 || lowWatermark >= highWatermark)
+          lowWatermark = highWatermark / 2;
+        
         String stringOpt = (String) options.get("OUTDIR");
         if(stringOpt != null)
           outputDir = stringOpt;
+        
+        value = (Integer) options.get("ARCHIVEQUEUE");
+        if(value != null)
+          archiveQueueSize = value.intValue();
+        
+        stringOpt = (String) options.get("ARCHIVEPOLICY");
+        if(stringOpt != null)
+          archivePolicy = ArchiveWriter.getPolicy(stringOpt);
+        
+        stringOpt = (String) options.get("ARCHIVEPREALLOC");
+        if(stringOpt != null)
+          archivePreallocate = stringOpt.equalsIgnoreCase("on");
+        
+        prefetcher = (SegmentPrefetcher) options.get("PREFETCHER");
+        addressPool = (LocalAddressPool) options.get("ADDRESSPOOL");
+        shaper = (BandwidthShaper) options.get("SHAPER");
+        warmupCache = (WarmupCache) options.get("WARMUPCACHE");
+        
+        stringOpt = (String) options.get("PREWARM");
+        if(stringOpt != null)
+          prewarm = !stringOpt.equalsIgnoreCase("off");
+        
+        value = (Integer) options.get("BROADCAST");
+        if(value != null)
+          broadcastLag = value.intValue();
+        
+        value = (Integer) options.get("FOLLOW");
+        if(value != null)
+          followTimeout = value.intValue() * 1000L;
+    }
+    
+    /**
+     * Start opening the connections for a split download, unless there are already enough open
+     * 
+     * @param request
+     * @param count
+     */
+    private void prewarmConnections(HttpRequest request, int count)
+    {
+        if (!prewarm || count < 2) return;
+        
+        InetAddress localAddresses[] = null;
+        if (addressPool != null)
+        {
+            // Spread them over the local addresses the way the download threads will pick them
+            localAddresses = new InetAddress[count];
+            for (int i = 0; i < count; i++)
+                localAddresses[i] = addressPool.acquire();
+            for (int i = 0; i < count; i++)
+                addressPool.release(localAddresses[i], 0, 0);
+        }
+        request.prewarm(count, origin.getConnectTimeout(), localAddresses);
+    }
+    
+    /**
+     * Creates a thread that carries on a client's download from where it got to in a broadcast. The
+     * response headers have already been sent to the client.
+     * 
+     * @param s
+     * @param options
+     * @param request
+     * @param contentLength
+     * @param position position in the stream to carry on from
+     */
+    public ProxyThread(Socket s, HashMap options, HttpRequest request, long contentLength, long position)
+    {
+        this(s, options);
+        this.resumeRequest = request;
+        this.contentLength = contentLength;
+        this.resumePosition = position;
+        broadcastLag = 0;
     }
 
     public void run()
@@ -83,35 +258,119 @@ public class ProxyThread extends Thread
             BufferedInputStream clientIn = new BufferedInputStream(socket.getInputStream());
             OutputStream clientOut = socket.getOutputStream();
             
+            if (resumeRequest != null)
+            {
+                resumeDownload(resumeRequest, clientOut, resumePosition);
+                return;
+            }
+            
             // Parse the request from the proxy client
             HttpRequest request = new HttpRequest(clientIn);
             
+            if (ControlApi.isControlRequest(request))
+            {
+                ControlApi.handle(request, clientOut, warmupCache);
+                return;
+            }
+            
+            // Segments of a playlist may already have been prefetched
+            if (prefetcher != null && request.getRequestType().equalsIgnoreCase("GET") && request.getHeader("range") == null)
+            {
+                prefetcher.notifyRequest(request);
+                SegmentCache.CachedResponse cached = prefetcher.getCached(request);
+                if (cached != null)
+                {
+                    if (shaper != null)
+                        writeBucket = shaper.newWriteBucket();
+                    clientOut.write(cached.getHeaders());
+                    byte body[] = cached.getBody();
+                    for (int offset = 0; offset < body.length; offset += 4096)
+                    {
+                        int count = Math.min(4096, body.length - offset);
+                        if (writeBucket != null)
+                            writeBucket.take(count, false);
+                        clientOut.write(body, offset, count);
+                    }
+                    clientOut.flush();
+                    return;
+                }
+            }
+            
+            // Another client may already be downloading the same stream
+            if (broadcastLag > 0 && request.getRequestType().equalsIgnoreCase("GET") && request.getHeader("range") == null)
+            {
+                BroadcastSession session = BroadcastSession.find(request.getUrl());
+                if (session != null && followBroadcast(session, request, clientOut)) return;
+            }
+            
+            // Prefetch jobs may have fetched some or all of it already
+            if (warmupCache != null && request.getRequestType().equalsIgnoreCase("GET") && serveWarmed(request, clientOut)) return;
+            
             // Send the request on to the server and get the response
-            HttpResponse response = request.execute();
+            setLive();
+            origin = OriginCapabilities.get(request.getOrigin());
             
-            // Write out the response headers to the proxy client
-            clientOut.write(response.getResponseBytes());
-            clientOut.flush();
+            // If this server's objects are usually split start opening the connections for it now, while
+            // the first response is on its way
+            if (request.getRequestType().equalsIgnoreCase("GET") && origin.isSplitLikely()
+                    && !MediaPlaylist.isPlaylist(request.getUrl(), null))
+                prewarmConnections(request, origin.getConnectionCount(0, downloadThreadCount, 0));
+            
+            long requestTime = System.currentTimeMillis();
+            HttpResponse response = request.execute();
+            origin.recordTtfb(System.currentTimeMillis() - requestTime);
+            origin.recordResponse(response);
             
             int responseCode = response.getResponseCode();
             contentLength = response.getContentLength();
             log.debug("response code = " + responseCode + " contentLength = " + contentLength);
+            if (responseCode == 200 && request.getRequestType().equalsIgnoreCase("GET"))
+                origin.recordObjectSize(contentLength);
+            
+            // A stream that is still being written is followed as it grows
+            int threadCount = 0;
+            if (followTimeout > 0 && isGrowing(request, response))
+                threadCount = planFollow(request);
+            
+            // Write out the response headers to the proxy client. The length of a followed stream isn't
+            // known yet so the client is told to read until the connection closes.
+            clientOut.write(following ? response.getOpenEndedResponseBytes() : response.getResponseBytes());
+            clientOut.flush();
+            
+            // Only consider the multi-threaded download if it is a GET request with a 200 response (or 206 - partial content).
+            // Chunked responses are passed through as they are so they can't be split either.
+            if (!following && request.getRequestType().equalsIgnoreCase("GET") && (responseCode == 200 || responseCode == 206) 
+                    && !"chunked".equalsIgnoreCase(response.getHeader("transfer-encoding")))
+            {
+                threadCount = planDownload(request, response.getHeader("content-type"));
+            }
             
-            // Only do the multi-threaded download if it is a GET request, there is > 5megs of data and a 200 response (or 206 - partial content)
-            if (request.getRequestType().equalsIgnoreCase("GET") && (responseCode == 200 || responseCode == 206) && contentLength > 5000000)
+            if (threadCount > 1 || following)
             {
                 response.close();
-                doDownload(request, contentLength, clientOut);
+                
+                // Let other clients that ask for the same stream share this download
+                if (broadcastLag > 0 && request.getHeader("range") == null && !following)
+                    broadcast = BroadcastSession.start(request.getUrl(), response, contentLength, bufferSize, broadcastLag);
+                doDownload(request, contentLength, clientOut, Math.max(threadCount, 1), 0);
+            }
+            else if (prefetcher != null && responseCode == 200 && !request.getRequestType().equalsIgnoreCase("HEAD")
+                    && MediaPlaylist.isPlaylist(request.getUrl(), response.getHeader("content-type")))
+            {
+                // Playlists are small, read the whole thing so the prefetcher can look at it
+                ByteArrayOutputStream playlist = new ByteArrayOutputStream();
+                copyBody(request, response.getInputStream(), playlist);
+                clientOut.write(playlist.toByteArray());
+                clientOut.flush();
+                prefetcher.notifyPlaylist(request, playlist.toByteArray());
             }
             else if (!(responseCode >= 300 && responseCode < 400) && !request.getRequestType().equalsIgnoreCase("HEAD")) {
                 // For all other requests just stream the rest of the data to the proxy client
-                InputStream stream = response.getInputStream();
                 BufferedOutputStream bufOut = new BufferedOutputStream(clientOut);
-                for (int counter = 0, b=-1; (counter < contentLength || contentLength < 0) && (b = stream.read()) >= 0; counter++)
-                {
-                    bufOut.write(b);
-                }
+                long startTime = System.currentTimeMillis();
+                long counter = copyBody(request, response.getInputStream(), bufOut);
                 bufOut.flush();
+                origin.recordThroughput(counter, System.currentTimeMillis() - startTime);
             }
             response.close();            
         }
@@ -124,7 +383,8 @@ public class ProxyThread extends Thread
             try
             {
                 downloadFinished = true;
-                socket.close();
+                if (live) liveClients.decrementAndGet();
+                if (socket != null) socket.close();
             }
             catch (Exception e)
             {}
@@ -132,60 +392,505 @@ public class ProxyThread extends Thread
         log.debug("Finished with request");
     }
 
+    /**
+     * Copies a response body that isn't split, up to contentLength if it is known. When bandwidth is
+     * shaped it goes through the session's buckets like a split download does.
+     * 
+     * @param request
+     * @param in
+     * @param out
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    private long copyBody(HttpRequest request, InputStream in, OutputStream out) throws IOException
+    {
+        if (shaper != null)
+        {
+            readBucket = shaper.newReadBucket(request.getOrigin());
+            writeBucket = shaper.newWriteBucket();
+        }
+        
+        byte data[] = new byte[4096];
+        long counter = 0;
+        int bytesRead = -2;
+        while ((counter < contentLength || contentLength < 0)
+                && (bytesRead = in.read(data, 0, contentLength < 0 ? data.length : (int) Math.min(data.length, contentLength - counter))) >= 0)
+        {
+            if (readBucket != null)
+                readBucket.take(bytesRead, false);
+            if (writeBucket != null)
+                writeBucket.take(bytesRead, false);
+            out.write(data, 0, bytesRead);
+            counter += bytesRead;
+        }
+        return counter;
+    }
+    
+    /**
+     * Serves the client from a download that another ProxyThread is sharing. If the client falls too
+     * far behind the others it carries on with a download of its own from where it got to.
+     * 
+     * @param session
+     * @param request
+     * @param clientOut
+     * @return false if it was too late to join the session
+     * @throws IOException
+     */
+    private boolean followBroadcast(BroadcastSession session, HttpRequest request, OutputStream clientOut) throws IOException
+    {
+        BroadcastBuffer.Reader reader = session.attach();
+        if (reader == null) return false;
+        
+        contentLength = session.getContentLength();
+        bytesSent = reader.getPosition();
+        log.debug("Joined broadcast of " + request.getUrl() + " @ " + bytesSent);
+        if (shaper != null)
+            writeBucket = shaper.newWriteBucket();
+        watchClient();
+        try
+        {
+            clientOut.write(session.getResponseBytes());
+            byte readBuffer[] = new byte[4096];
+            while (bytesSent < contentLength && !clientGone)
+            {
+                int newBytes = reader.read(readBuffer, (int) Math.min(readBuffer.length, contentLength - bytesSent));
+                if (newBytes < 0) break;
+                if (writeBucket != null)
+                    writeBucket.take(newBytes, false);
+                clientOut.write(readBuffer, 0, newBytes);
+                bytesSent += newBytes;
+            }
+            clientOut.flush();
+        }
+        catch (IOException e)
+        {
+            cancelSession("write failed, " + e.getMessage());
+        }
+        finally
+        {
+            reader.detach();
+        }
+        
+        if (bytesSent < contentLength && !clientGone)
+            resumeDownload(request, clientOut, bytesSent);
+        return true;
+    }
+    
+    /**
+     * Serves a GET from the warm-up cache. Whatever part of the stream the prefetch jobs fetched is
+     * sent from the disk and the rest is downloaded as usual, with an If-Range so that it is the same
+     * version.
+     * 
+     * @param request
+     * @param clientOut
+     * @return false if the start of what the client wants isn't in the cache, or the server has a
+     *         different version now
+     * @throws IOException
+     */
+    private boolean serveWarmed(HttpRequest request, OutputStream clientOut) throws IOException
+    {
+        // Only whole streams and ranges to the end of them, that is what players ask for. A client
+        // with its own If-Range has to hear from the server.
+        String range = request.getHeader("range");
+        if (range != null && !range.trim().matches("bytes=\\d+-")) return false;
+        if (request.getHeader("if-range") != null) return false;
+        
+        WarmupCache.CachedFile cached = warmupCache.find(request.getUrl());
+        if (cached == null) return false;
+        long start = request.getOriginalStart();
+        long covered = cached.getCoveredLength(start);
+        if (covered <= 0) return false;
+        
+        long length = cached.getLength();
+        contentLength = length - start;
+        
+        // The rest of a part that is cached can't be fetched safely without a validator
+        if (covered < contentLength && cached.getValidator() == null) return false;
+        if (!isWarmedCurrent(request, cached)) return false;
+        StringBuffer headers = new StringBuffer();
+        if (range == null)
+            headers.append("HTTP/1.1 200 OK\r\n");
+        else
+            headers.append("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes " + start + "-" + (length - 1) + "/" + length + "\r\n");
+        headers.append("Content-Length: " + contentLength + "\r\n");
+        if (cached.getContentType() != null)
+            headers.append("Content-Type: " + cached.getContentType() + "\r\n");
+        headers.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+        clientOut.write(headers.toString().getBytes("ISO-8859-1"));
+        
+        log.debug("Serving " + covered + " of " + contentLength + " bytes of " + request.getUrl() + " from the warm-up cache");
+        if (shaper != null)
+            writeBucket = shaper.newWriteBucket();
+        cached.copyTo(start, covered, clientOut, writeBucket);
+        bytesSent = covered;
+        
+        if (bytesSent < contentLength)
+        {
+            request.setHeader("if-range", cached.getValidator());
+            resumeDownload(request, clientOut, bytesSent);
+        }
+        return true;
+    }
+    
+    /**
+     * Checks with a range probe that the server still has the version of the stream that is in the
+     * warm-up cache. With the cached validator in an If-Range the server only answers with part of
+     * the stream if it is the same one.
+     * 
+     * @param request
+     * @param cached
+     * @return true if the cached copy can be served
+     */
+    private boolean isWarmedCurrent(HttpRequest request, WarmupCache.CachedFile cached)
+    {
+        HttpResponse probe = null;
+        request.setHeader("if-range", cached.getValidator());
+        try
+        {
+            probe = request.probe(OriginCapabilities.get(request.getOrigin()).getReadTimeout(1));
+            if (probe.getResponseCode() == 206 && probe.getInstanceLength() == cached.getLength())
+                return true;
+            log.debug(request.getUrl() + " has changed since it was cached, response code " + probe.getResponseCode());
+            return false;
+        }
+        catch (IOException e)
+        {
+            log.debug("Warm-up cache check failed: " + e);
+            return false;
+        }
+        finally
+        {
+            request.setHeader("if-range", null);
+            try
+            {
+                if (probe != null) probe.close();
+            }
+            catch (IOException e)
+            {}
+        }
+    }
+    
+    private void setLive()
+    {
+        if (!live) liveClients.incrementAndGet();
+        live = true;
+    }
+    
+    /**
+     * @return the number of clients whose requests are going to servers right now
+     */
+    public static int getLiveClients()
+    {
+        return liveClients.get();
+    }
+    
+    /**
+     * Carries on a download for a client that has already been sent part of the stream
+     * 
+     * @param request
+     * @param clientOut
+     * @param position
+     */
+    private void resumeDownload(HttpRequest request, OutputStream clientOut, long position)
+    {
+        log.debug("Resuming download of " + request.getUrl() + " @ " + position);
+        setLive();
+        origin = OriginCapabilities.get(request.getOrigin());
+        int threadCount = origin.getConnectionCount(contentLength - position, downloadThreadCount, blockSize);
+        doDownload(request, contentLength, clientOut, Math.max(threadCount, 1), position);
+    }
+
+    /**
+     * Decides whether the download should be split between threads and how many to use. If the
+     * origin's range support or the length of the stream isn't known a single byte is requested to
+     * find out. Streams without a length are only probed if they are audio or video, or the origin's
+     * objects are usually big enough to split.
+     * 
+     * @param request
+     * @param contentType
+     * @return the number of threads to use, 0 or 1 means stream the response as it is
+     */
+    private int planDownload(HttpRequest request, String contentType)
+    {
+        boolean media = contentLength < 0 && isMedia(request, contentType) && origin.getRangeSupport() != OriginCapabilities.NO;
+        if (!media && !origin.isSplitWorthwhile(contentLength)) return 0;
+        
+        if (contentLength < 0 || origin.getRangeSupport() == OriginCapabilities.UNKNOWN)
+        {
+            HttpResponse probe = null;
+            try
+            {
+                probe = request.probe(5000);
+                long instanceLength = probe.getInstanceLength();
+                if (probe.getResponseCode() != 206 || probe.getContentRangeStart() != request.getOriginalStart())
+                {
+                    origin.setRangeSupport(false);
+                    return 0;
+                }
+                origin.setRangeSupport(true);
+                
+                if (contentLength < 0 && instanceLength > 0)
+                {
+                    contentLength = instanceLength - request.getOriginalStart();
+                    log.debug("Probed contentLength = " + contentLength);
+                }
+            }
+            catch (IOException e)
+            {
+                log.debug("Range probe failed: " + e);
+                return 0;
+            }
+            finally
+            {
+                try
+                {
+                    if (probe != null) probe.close();
+                }
+                catch (IOException e)
+                {}
+            }
+            
+            // Now that the length is known it may turn out to be too small
+            if (contentLength < 0 || !origin.isSplitWorthwhile(contentLength)) return 0;
+        }
+        
+        int threadCount = origin.getConnectionCount(contentLength, downloadThreadCount, blockSize);
+        log.debug("Splitting download between " + threadCount + " threads");
+        return threadCount;
+    }
+
+    /**
+     * @return true if the content type is audio or video, apart from playlists
+     */
+    private static boolean isMedia(HttpRequest request, String contentType)
+    {
+        if (contentType == null || MediaPlaylist.isPlaylist(request.getUrl(), contentType)) return false;
+        contentType = contentType.toLowerCase();
+        return contentType.startsWith("video/") || contentType.startsWith("audio/");
+    }
+
+    /**
+     * @param request
+     * @param response
+     * @return true if the response looks like a stream that is still being written: it has no length,
+     *         or it was last modified less than the follow timeout ago. planFollow() checks the
+     *         second kind with a probe, it may just be a file that was finished recently.
+     */
+    private boolean isGrowing(HttpRequest request, HttpResponse response)
+    {
+        if (!request.getRequestType().equalsIgnoreCase("GET") || response.getResponseCode() != 200 || request.getHeader("range") != null)
+            return false;
+        
+        // A followed stream is sent straight out of the buffer, which needs the client's channel
+        if (socket.getChannel() == null) return false;
+        if (response.getContentLength() < 0) return true;
+        
+        long modified = HttpResponse.parseDate(response.getHeader("last-modified"));
+        if (modified < 0) return false;
+        long now = HttpResponse.parseDate(response.getHeader("date"));
+        if (now < 0) now = System.currentTimeMillis();
+        return now - modified < followTimeout;
+    }
+    
+    /**
+     * Finds out how far a growing stream has got with a range probe, and starts following it if the
+     * server does ranges. A stream whose response had a length is only followed if the probe shows
+     * that it has grown since, otherwise it is downloaded as usual with its length.
+     * 
+     * @param request
+     * @return the number of threads to start with, 0 if the stream isn't followed
+     */
+    private int planFollow(HttpRequest request)
+    {
+        HttpResponse probe = null;
+        try
+        {
+            probe = request.probe(origin.getReadTimeout(1));
+            if (probe.getResponseCode() != 206 || probe.getContentRangeStart() != 0 || probe.getInstanceLength() <= 0)
+                return 0;
+            origin.setRangeSupport(true);
+            if (contentLength >= 0 && probe.getInstanceLength() <= contentLength)
+            {
+                log.debug("Recently modified stream hasn't grown, not following it");
+                return 0;
+            }
+            fetchLength = probe.getInstanceLength();
+        }
+        catch (IOException e)
+        {
+            log.debug("Follow probe failed: " + e);
+            return 0;
+        }
+        finally
+        {
+            try
+            {
+                if (probe != null) probe.close();
+            }
+            catch (IOException e)
+            {}
+        }
+        
+        following = true;
+        contentLength = Long.MAX_VALUE;
+        lastGrowthTime = System.currentTimeMillis();
+        log.debug("Following growing stream, " + fetchLength + " bytes so far");
+        return origin.getConnectionCount(0, downloadThreadCount, 0);
+    }
+    
+    /**
+     * The follow thread calls this with the latest length of a followed stream. Once it hasn't grown
+     * for the follow timeout the stream is taken to be finished at that length.
+     * 
+     * @param length
+     */
+    private synchronized void updateFollowLength(long length)
+    {
+        long now = System.currentTimeMillis();
+        if (length > fetchLength)
+        {
+            log.debug("Follow - stream grew to " + length);
+            fetchLength = length;
+            lastGrowthTime = now;
+            notifyAll();
+        }
+        else if (now - lastGrowthTime > followTimeout)
+        {
+            log.debug("Follow - stream stopped growing at " + fetchLength);
+            following = false;
+            contentLength = fetchLength;
+            
+            // A client that already has all of it would otherwise wait for more forever
+            if (buffer.getStreamReadPosition() >= contentLength) buffer.quit();
+            notifyAll();
+        }
+    }
+    
+    /**
+     * @return true if a followed stream is close enough to its live edge that one thread is enough
+     *         to keep up with it. There has to be at least a block for each thread to go parallel.
+     */
+    private boolean isNearEdge()
+    {
+        return following && fetchLength - serverReadPosition < (long) blockSize * downloadThreads.length;
+    }
+    
     /**
      * This method does the multi threaded downloading
      * 
      * @param request
      * @param contentLength
      * @param clientOut
+     * @param threadCount number of download threads to start
+     * @param startPosition position in the stream to start from, the client has already been sent the bytes before it
      */    
     OutputStream cout = null;
-    public void doDownload(HttpRequest request, long contentLength, OutputStream clientOut)
+    public void doDownload(HttpRequest request, long contentLength, OutputStream clientOut, int threadCount, long startPosition)
     {
         cout = clientOut;
+        ProxyEvents.ClientSession sessionEvent = new ProxyEvents.ClientSession();
+        sessionEvent.begin();
         SpeedThread speedThread = new SpeedThread(this);
-        buffer = new CircularDownloadBuffer(bufferSize);
+        if (broadcast != null)
+        {
+            buffer = broadcast.getBuffer();
+            broadcastReader = broadcast.attach();
+        }
+        else
+            buffer = clientBuffer = new CircularDownloadBuffer(bufferSize, startPosition);
+        serverReadPosition = startPosition;
+        bytesSent = startPosition;
+        if (!following)
+            fetchLength = contentLength;
+        
+        if (shaper != null)
+        {
+            readBucket = shaper.newReadBucket(request.getOrigin());
+            writeBucket = shaper.newWriteBucket();
+        }
+        
+        // If we already know this origin skip the ramp up and go straight to the block size that suits it
+        int learnedBlockSize = origin.getBlockSize(blockSize, maxBlockSize);
+        if (learnedBlockSize > 0)
+        {
+            log.debug("Using learned block size " + learnedBlockSize);
+            blockSize = learnedBlockSize;
+            maxBlockSize = learnedBlockSize;
+        }
 
-        // Also write the request out to a file
-        BufferedOutputStream fileOut = null; 
+        // Also write the request out to a file. That is done on the archive's own thread so the disk
+        // can't hold up the client.
+        ArchiveWriter fileOut = null; 
         
         try
         {
             String outFile = request.getFileName();
-            if(outputDir != null) {
+            if(outputDir != null && startPosition == 0) {
                 outFile = outputDir + File.separator + request.getFileName();
-                fileOut = new BufferedOutputStream(new FileOutputStream(outFile));
+                fileOut = new ArchiveWriter(outFile, 0, following ? -1 : contentLength, archiveQueueSize, archivePolicy, archivePreallocate);
+                fileOut.start();
             }
             
-            downloadThreads = new DownloadThread[downloadThreadCount];
-            for (int i = 0; i < downloadThreadCount; i++)
+            prewarmConnections(request, threadCount);
+            activeThreadCount = threadCount;
+            downloadThreads = new DownloadThread[threadCount];
+            for (int i = 0; i < threadCount; i++)
             {
                 downloadThreads[i] = new DownloadThread(request, buffer, this);
                 downloadThreads[i].start();
             }
             
             speedThread.start();
+            watchClient();
+            if (following)
+                new FollowThread(request).start();
+            
+            // Whoa there boyo, give the server time to give us some data before we start sending it to the client.
+            // Not when sharing though, the other clients are already reading and we would fall behind them.
+            if (broadcast == null)
+                Thread.sleep(2000);
             
-            // Whoa there boyo, give the server time to give us some data before we start sending it to the client
-            Thread.sleep(2000);
+            // Clients accepted through a channel are sent the data straight out of the buffer
+            SocketChannel clientChannel = broadcastReader == null ? socket.getChannel() : null;
             
             byte readBuffer[] = new byte[4096];
             int readLength = 4096;
-            while (bytesSent < contentLength - 1 && !downloadFinished)
+            try
             {
-                // For the last set of bytes that we download we need to make sure we don't try and read too much
-                // from the circular buffer, otherwise it will block waiting for more data
-                if(readLength + bytesSent >= contentLength)
-                    readLength = (int) (contentLength - bytesSent - 1);
-                
-                int newBytes = buffer.read(readBuffer, readLength);
-                clientOut.write(readBuffer, 0, newBytes);
-                if(fileOut != null) {
-                   fileOut.write(readBuffer, 0, newBytes);
+                // The field rather than the parameter, it changes when a followed stream stops growing
+                while (bytesSent < this.contentLength && !downloadFinished)
+                {
+                    if (clientChannel != null)
+                    {
+                        bytesSent += sendReadyData(clientChannel, fileOut, this.contentLength - bytesSent);
+                        continue;
+                    }
+                    
+                    // For the last set of bytes that we download we need to make sure we don't try and read too much
+                    // from the circular buffer, otherwise it will block waiting for more data
+                    if(readLength + bytesSent > contentLength)
+                        readLength = (int) (contentLength - bytesSent);
+                    
+                    int newBytes = broadcastReader != null ? broadcastReader.read(readBuffer, readLength) : clientBuffer.read(readBuffer, readLength);
+                    if (newBytes < 0) break;
+                    if (writeBucket != null)
+                        writeBucket.take(newBytes, false);
+                    clientOut.write(readBuffer, 0, newBytes);
+                    if(fileOut != null) {
+                       fileOut.write(readBuffer, 0, newBytes);
+                    }
+                    bytesSent += newBytes;
                 }
-                bytesSent += newBytes;
+                clientOut.flush();
             }
-            clientOut.flush();
+            catch (IOException e)
+            {
+                // Losing our own client doesn't end a shared download, cancelSession knows the difference
+                cancelSession("write failed, " + e.getMessage());
+            }
+            
+            if (broadcast != null)
+                finishBroadcast(request, contentLength);
         }
         catch (Exception e)
         {
@@ -195,12 +900,98 @@ public class ProxyThread extends Thread
         {
             downloadFinished = true;
             buffer.quit();
+            abortDownloads();
+            if (broadcast != null)
+                broadcast.end();
             if(fileOut != null)
-              try { fileOut.close(); } catch(IOException e) {}
+              fileOut.close();
         }
         log.debug("Manager - finished sent: " + bytesSent);
+        if (sessionEvent.isEnabled())
+        {
+            sessionEvent.url = request.getUrl();
+            sessionEvent.contentLength = this.contentLength;
+            sessionEvent.bytesSent = bytesSent;
+            sessionEvent.threads = threadCount;
+            sessionEvent.broadcast = broadcast != null;
+            sessionEvent.commit();
+        }
+        
+        // Remember how well this went for next time
+        if (speedSamples > 0)
+            origin.recordSession(downloadThreads.length, totalSampledSpeed / speedSamples);
+        OriginCapabilities.save();
+    }
+    
+    /**
+     * Writes all of the data that is ready in the buffer to the client with one gather write, straight
+     * out of the buffer's array rather than through a read buffer.
+     * 
+     * @param clientChannel
+     * @param fileOut
+     * @param maxLength
+     * @return the number of bytes sent
+     * @throws IOException
+     */
+    private int sendReadyData(SocketChannel clientChannel, ArchiveWriter fileOut, long maxLength) throws IOException
+    {
+        // When the client's rate is limited send it smaller pieces so that it gets a steady stream
+        if (writeBucket != null)
+            maxLength = Math.min(maxLength, 65536);
+        
+        ByteBuffer[] regions = clientBuffer.getReadRegions((int) Math.min(maxLength, bufferSize));
+        int length = 0;
+        for (int i = 0; i < regions.length; i++)
+            length += regions[i].remaining();
+        if (fileOut != null)
+            fileOut.write(regions);
+        if (writeBucket != null)
+            writeBucket.take(length, false);
+        
+        // A blocking channel normally writes it all in one go
+        long written = 0;
+        while (written < length)
+            written += clientChannel.write(regions);
+        
+        clientBuffer.release(length);
+        return length;
+    }
+    
+    /**
+     * Called when this thread's own client is done with a shared download. If the client fell too
+     * far behind it is handed to a new thread that carries on where it got to. The download keeps
+     * going until every other client has finished with it.
+     * 
+     * @param request
+     * @param contentLength
+     * @throws InterruptedException
+     */
+    private void finishBroadcast(HttpRequest request, long contentLength) throws InterruptedException
+    {
+        OutputStream clientOut = cout;
+        cout = null;
+        if (broadcastReader.isDetached() && bytesSent < contentLength && !downloadFinished && !clientGone && !socket.isClosed())
+        {
+            new ProxyThread(socket, options, request, contentLength, bytesSent).start();
+            socket = null;
+        }
+        else if (!broadcastReader.isDetached())
+        {
+            broadcastReader.detach();
+            try { clientOut.close(); } catch(IOException e) {}
+        }
+        
+        // Stop new clients joining so the download can wind down
+        broadcast.end();
+        while (!downloadFinished && broadcast.getBuffer().getReaderCount() > 0)
+            Thread.sleep(200);
+        log.debug("Broadcast - all clients finished");
     }
     
+    // Sum of the total download speeds measured each second, for the origin's profile
+    private long totalSampledSpeed = 0;
+    private int speedSamples = 0;
+    
     private long lastTime = System.currentTimeMillis();
     private long lastBytesSent = 0;
     /**
@@ -214,12 +1005,13 @@ public class ProxyThread extends Thread
         // Measure the current progress and output it to the console
         long currentTime = System.currentTimeMillis();        
         int clientReadSpeed = (int) (((bytesSent - lastBytesSent) / 1000) / ((currentTime - lastTime) / 1000));
-        if(lastBytesSent == bytesSent) { 
+        OutputStream clientOut = cout;
+        // At the live edge of a followed stream there can be nothing to send for a while
+        if(lastBytesSent == bytesSent && clientOut != null && bytesSent < fetchLength) { 
           if(readZeroBytes++ == 12) {
-            downloadFinished = true;
-            buffer.quit();            
             log.debug("Killing download, client appears to have disconnected: " + bytesSent);            
-            cout.close();
+            cancelSession("no progress");
+            clientOut.close();
           }
         } else {
             readZeroBytes = 0;
@@ -230,23 +1022,79 @@ public class ProxyThread extends Thread
         lastTime = currentTime;           
         lastBytesSent = bytesSent;     
         
+       long totalSpeed = 0;
        for(int i = 0; i < downloadThreads.length; i++)
        {
          int speed = downloadThreads[i].getSpeed();
+         totalSpeed += speed;
          long start = downloadThreads[i].getStartPosition();
          long end = downloadThreads[i].getEndPosition();
          long current = downloadThreads[i].getCurrentPosition();
          System.out.println("Dl thread - " + i + " " + (speed / 1000) + "k/s " + start + " -> " + end + " @ " + current);
        }
+       
+       // Only count the total speed while every thread is busy, otherwise we would be measuring the client
+       synchronized (this)
+       {
+         if (!fetchPaused && activeThreadCount == downloadThreads.length && serverReadPosition < fetchLength && !isNearEdge())
+         {
+           totalSampledSpeed += totalSpeed;
+           speedSamples++;
+         }
+       }
     }
     
     // Threads call this when they are done with their block. If it returns false then they should quit
     public synchronized boolean notifyThreadReady(DownloadThread thread, int bytesDownloaded)
     {
+        if (edgeThread == thread) edgeThread = null;
+        
+        // Once everything has been handed out the thread waits in case a range goes missing. It also
+        // waits while the client is too far behind, with its connection closed rather than stalled,
+        // and while another thread is following the live edge of a growing stream.
+        while (!downloadFinished && missingRanges.isEmpty() && (serverReadPosition >= fetchLength || isBufferFull() || (edgeThread != null && isNearEdge())))
+        {
+            try
+            {
+                wait(200);
+            }
+            catch (InterruptedException e)
+            {
+                return false;
+            }
+        }
+        
         if (downloadFinished) return false;
         
+        if (!missingRanges.isEmpty())
+        {
+            if (multiRangeSupported && missingRanges.size() > 1)
+            {
+                List<ByteRange> blocks = new ArrayList<ByteRange>();
+                while (!missingRanges.isEmpty() && blocks.size() < MAX_RANGES_PER_REQUEST)
+                    blocks.add(missingRanges.remove(0));
+                thread.setBlocks(blocks);
+                recordAssigned(blocks.get(0).getStart(), blocks.get(blocks.size() - 1).getEnd(), blocks.size(), true);
+            }
+            else
+            {
+                ByteRange range = missingRanges.remove(0);
+                thread.setBlock(range.getStart(), range.getEnd());
+                recordAssigned(range.getStart(), range.getEnd(), 1, true);
+            }
+            return true;
+        }
+        
         int threadBlockSize = blockSize;
         
+        // Near the live edge one thread takes everything there is, the rest of the threads start
+        // again once enough has built up ahead of it
+        if (isNearEdge())
+        {
+            edgeThread = thread;
+            threadBlockSize = (int) (fetchLength - serverReadPosition);
+        }
+        
         // Ramp up the block size. We start with a small block size and  then work our way up. 
         // The theory being that the first few blocks should be small so that we buffer
         // data quickly ahead of the client.
@@ -255,23 +1103,187 @@ public class ProxyThread extends Thread
         else
           blockSize = maxBlockSize;
         
+        // Don't hand out more than the high watermark allows so that writes never have to wait for space
+        long allowed = buffer.getStreamReadPosition() + highWatermark - serverReadPosition;
+        if (threadBlockSize > allowed)
+            threadBlockSize = (int) allowed;
+        
         // If we are nearing the end of the stream the block size might go over it, so we shorten it
-        if (serverReadPosition + threadBlockSize > contentLength)
+        if (serverReadPosition + threadBlockSize > fetchLength)
         {
-            threadBlockSize = (int) (contentLength - serverReadPosition);
+            threadBlockSize = (int) (fetchLength - serverReadPosition);
         }
         
         // Tell the thread to download the next block
         thread.setBlock(serverReadPosition, serverReadPosition + threadBlockSize);
+        recordAssigned(serverReadPosition, serverReadPosition + threadBlockSize, 1, false);
         serverReadPosition += threadBlockSize;
         return true;
     }
+    
+    private void recordAssigned(long start, long end, int ranges, boolean retry)
+    {
+        ProxyEvents.SegmentAssigned event = new ProxyEvents.SegmentAssigned();
+        if (!event.isEnabled()) return;
+        event.start = start;
+        event.end = end;
+        event.ranges = ranges;
+        event.retry = retry;
+        event.commit();
+    }
+
+    /**
+     * Works out whether new blocks should be handed out. Fetching is paused when the data handed out
+     * but not yet read by the client reaches the high watermark and resumes once it drops to the low
+     * watermark, so that the threads all start again together.
+     * 
+     * @return true if fetching is paused
+     */
+    private boolean isBufferFull()
+    {
+        long buffered = serverReadPosition - buffer.getStreamReadPosition();
+        if (fetchPaused && buffered <= lowWatermark)
+        {
+            log.debug("Resuming fetching, buffered: " + buffered);
+            fetchPaused = false;
+        }
+        else if (!fetchPaused && buffered >= highWatermark)
+        {
+            log.debug("Pausing fetching, buffered: " + buffered);
+            fetchPaused = true;
+        }
+        return fetchPaused;
+    }
+    
+    /**
+     * Download threads call this with a range that they were given but could not download. It is
+     * handed out again to the next thread that is ready.
+     * 
+     * @param start
+     * @param end
+     */
+    public synchronized void notifyRangeMissing(long start, long end)
+    {
+        int i = 0;
+        while (i < missingRanges.size() && missingRanges.get(i).getStart() < start)
+            i++;
+        missingRanges.add(i, new ByteRange(start, end));
+        notifyAll();
+    }
+    
+    /**
+     * Download threads call this when they give up, for example because the server refused a range
+     * request. The download carries on with the remaining threads. The last thread is never let go,
+     * the session can't end while there are ranges left to fetch or the client would wait forever
+     * for them. If the server stays down the stall check ends the session.
+     * 
+     * @param thread
+     * @return true if the thread should quit, false if it is the last one and should keep going
+     */
+    public synchronized boolean notifyThreadFailed(DownloadThread thread)
+    {
+        if (downloadFinished) return true;
+        if (activeThreadCount <= 1)
+        {
+            log.debug("Last download thread failed, keeping it");
+            return false;
+        }
+        activeThreadCount--;
+        log.debug("Download thread quit, " + activeThreadCount + " left");
+        notifyAll();
+        return true;
+    }
+    
+    public synchronized int getActiveThreadCount()
+    {
+        return activeThreadCount;
+    }
+    
+    public OriginCapabilities getOrigin()
+    {
+        return origin;
+    }
+    
+    public LocalAddressPool getAddressPool()
+    {
+        return addressPool;
+    }
+    
+    public TokenBucket getReadBucket()
+    {
+        return readBucket;
+    }
+    
+    /**
+     * Download threads call this when the server did not answer a multi range request with
+     * multipart/byteranges. From then on missing ranges are requested one at a time.
+     */
+    public synchronized void notifyMultiRangeUnsupported()
+    {
+        if (multiRangeSupported) log.debug("Server does not support multi range requests");
+        multiRangeSupported = false;
+    }
 
     public boolean isFinished()
     {
         return downloadFinished;
     }    
     
+    /**
+     * Called as soon as the client is known to be gone, when a write to it fails or it closes its
+     * end. The download threads are stopped at once, including any blocked reading from the server,
+     * so their connections and the buffer are given up without waiting for the stall check.
+     * 
+     * @param reason
+     */
+    private void cancelSession(String reason)
+    {
+        Socket s = socket;
+        // A client handed on to another thread isn't ours to cancel, nor one that has everything
+        if (clientGone || s == null || bytesSent >= contentLength) return;
+        clientGone = true;
+        log.debug("Client gone (" + reason + ") @ " + bytesSent + ", cancelling session");
+        
+        // With a shared download only this client is dropped, the others carry on
+        if (broadcastReader != null)
+        {
+            if (!broadcastReader.isDetached()) broadcastReader.detach();
+        }
+        else
+        {
+            downloadFinished = true;
+            if (buffer != null) buffer.quit();
+            abortDownloads();
+            synchronized (this)
+            {
+                notifyAll();
+            }
+        }
+        try
+        {
+            s.close();
+        }
+        catch (IOException e)
+        {}
+    }
+    
+    private void watchClient()
+    {
+        if (clientWatcher != null) return;
+        clientWatcher = new ClientWatcher(socket);
+        clientWatcher.start();
+    }
+    
+    private void abortDownloads()
+    {
+        DownloadThread threads[] = downloadThreads;
+        if (threads == null) return;
+        for (int i = 0; i < threads.length; i++)
+        {
+            if (threads[i] != null) threads[i].abort();
+        }
+    }
+    
     /**
      * Download threads call this method to notify the manager that something went wrong
      * and that they have to quit.
@@ -282,6 +1294,107 @@ public class ProxyThread extends Thread
         downloadFinished = true;
     }
 
+    /**
+     * Watches the client's side of the connection while the stream is being sent. Players don't send
+     * anything after the request, so reading the end of the stream or an error means the client has
+     * closed the connection. Anything it does send is thrown away.
+     * 
+     * @author conorhunt
+     *
+     */
+    private class ClientWatcher extends Thread
+    {
+        Socket watched = null;
+        
+        public ClientWatcher(Socket watched)
+        {
+            this.watched = watched;
+            setDaemon(true);
+        }
+        
+        public void run()
+        {
+            byte buf[] = new byte[1024];
+            try
+            {
+                InputStream in = watched.getInputStream();
+                while (!downloadFinished && !clientGone && socket == watched)
+                {
+                    try
+                    {
+                        if (in.read(buf) < 0)
+                        {
+                            if (socket == watched) cancelSession("connection closed");
+                            return;
+                        }
+                    }
+                    catch (SocketTimeoutException e)
+                    {}
+                }
+            }
+            catch (IOException e)
+            {
+                if (!downloadFinished && socket == watched) cancelSession(e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Checks how far a followed stream has grown, every second while everything known about has been
+     * handed out
+     * 
+     * @author conorhunt
+     *
+     */
+    private class FollowThread extends Thread
+    {
+        HttpRequest request = null;
+        
+        public FollowThread(HttpRequest request)
+        {
+            this.request = request;
+        }
+        
+        public void run()
+        {
+            while (following && !downloadFinished)
+            {
+                try
+                {
+                    Thread.sleep(1000);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                if (serverReadPosition < fetchLength) continue;
+                
+                long length = fetchLength;
+                HttpResponse probe = null;
+                try
+                {
+                    probe = request.probe(origin.getReadTimeout(1));
+                    if (probe.getResponseCode() == 206 && probe.getInstanceLength() > 0)
+                        length = probe.getInstanceLength();
+                }
+                catch (IOException e)
+                {
+                    log.debug("Follow - probe failed: " + e);
+                }
+                finally
+                {
+                    try
+                    {
+                        if (probe != null) probe.close();
+                    }
+                    catch (IOException e)
+                    {}
+                }
+                updateFollowLength(length);
+            }
+        }
+    }
+    
     /**
      * Simple thread that sleeps 1 second and then outputs the current speeds of the download
      * 
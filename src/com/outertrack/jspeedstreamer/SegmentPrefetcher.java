@@ -0,0 +1,316 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.http.HttpRequest;
+import com.outertrack.jspeedstreamer.http.HttpResponse;
+import com.outertrack.jspeedstreamer.http.MediaPlaylist;
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+import com.outertrack.jspeedstreamer.utils.SegmentCache;
+import com.outertrack.jspeedstreamer.utils.TokenBucket;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Speeds up adaptive streaming (HLS/DASH) where a player fetches a playlist and then lots of small
+ * segments one after the other.
+ *
+ * ProxyThreads hand playlists that pass through them to the prefetcher. When a player asks for a
+ * segment the next few segments of its playlist are fetched in parallel into a SegmentCache that all
+ * of the ProxyThreads share, so by the time the player asks for them they can be served from memory.
+ *
+ * Segments are fetched with the headers of the player's request, so a cached segment is only served
+ * to a request with the same credentials (Authorization and Cookie headers), and only once. Responses
+ * the server marks as private or not to be stored are not cached.
+ *
+ * @author conorhunt
+ *
+ */
+public class SegmentPrefetcher
+{
+    private static MultiLogger log = MultiLogger.getLogger(SegmentPrefetcher.class);
+
+    // Only this many recent playlists are remembered
+    private static final int MAX_PLAYLISTS = 32;
+
+    // How long a ProxyThread waits for a segment that is already being prefetched
+    private static final long PENDING_WAIT = 10000;
+
+    // How long a prefetched segment is kept for if the player doesn't ask for it
+    private static final long SEGMENT_TTL = 30000;
+
+    // The request headers that say who the player is
+    private static final String[] CREDENTIAL_HEADERS = { "authorization", "cookie" };
+
+    private SegmentCache cache = null;
+
+    // Shapes the fetches when bandwidth is limited, null if it isn't
+    private volatile BandwidthShaper shaper = null;
+
+    // Number of segments to fetch ahead of the player, this is also the number of fetching threads
+    private int segmentCount = 4;
+
+    // Recently seen playlists by URL. Live playlists are fetched over and over and replace themselves.
+    private LinkedHashMap<String, MediaPlaylist> playlists = new LinkedHashMap<String, MediaPlaylist>(16, 0.75f, true);
+
+    // Segments waiting to be fetched
+    private LinkedList<PrefetchJob> queue = new LinkedList<PrefetchJob>();
+
+    public SegmentPrefetcher(int segmentCount, long cacheSize)
+    {
+        this.segmentCount = segmentCount;
+        this.cache = new SegmentCache(cacheSize);
+
+        for (int i = 0; i < segmentCount; i++)
+        {
+            PrefetchThread t = new PrefetchThread();
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public void setShaper(BandwidthShaper shaper)
+    {
+        this.shaper = shaper;
+    }
+
+    /**
+     * ProxyThreads call this with the body of every playlist that passes through them. The
+     * segments the player will start with are fetched straight away.
+     *
+     * @param request the request the playlist was fetched with
+     * @param body
+     */
+    public void notifyPlaylist(HttpRequest request, byte[] body)
+    {
+        MediaPlaylist playlist = MediaPlaylist.parse(request.getUrl(), new String(body, StandardCharsets.UTF_8));
+        synchronized (playlists)
+        {
+            playlists.remove(playlist.getUrl());
+            playlists.put(playlist.getUrl(), playlist);
+            if (playlists.size() > MAX_PLAYLISTS)
+                playlists.remove(playlists.keySet().iterator().next());
+        }
+
+        List<String> first = playlist.getFirstSegments(segmentCount);
+        log.debug("Playlist " + playlist.getUrl() + " live: " + playlist.isLive() + " prefetching " + first.size());
+        for (int i = 0; i < first.size(); i++)
+            queue(request, first.get(i));
+    }
+
+    /**
+     * ProxyThreads call this when a player asks for something. If it is a segment of a known
+     * playlist the segments after it are queued for fetching.
+     *
+     * @param request
+     */
+    public void notifyRequest(HttpRequest request)
+    {
+        String url = request.getUrl();
+        List<String> following = new ArrayList<String>();
+        synchronized (playlists)
+        {
+            for (MediaPlaylist playlist : playlists.values())
+            {
+                following = playlist.getFollowing(url, segmentCount);
+                if (!following.isEmpty()) break;
+            }
+        }
+
+        for (int i = 0; i < following.size(); i++)
+            queue(request, following.get(i));
+    }
+
+    /**
+     * Get a prefetched response. If it is still being fetched this waits for it. The response is
+     * removed from the cache.
+     *
+     * @param request the player's request
+     * @return the response or null if it hasn't been prefetched for this player
+     */
+    public SegmentCache.CachedResponse getCached(HttpRequest request)
+    {
+        return cache.get(cacheKey(request, request.getUrl()), PENDING_WAIT);
+    }
+
+    private void queue(HttpRequest template, String url)
+    {
+        String key = cacheKey(template, url);
+        if (!cache.reserve(key)) return;
+        synchronized (queue)
+        {
+            queue.add(new PrefetchJob(template, url, key));
+            queue.notify();
+        }
+    }
+
+    /**
+     * The cache key for a URL fetched with the credentials of a request. The credentials are
+     * hashed so that they don't end up in the logs.
+     */
+    private static String cacheKey(HttpRequest request, String url)
+    {
+        StringBuffer credentials = new StringBuffer();
+        for (int i = 0; i < CREDENTIAL_HEADERS.length; i++)
+        {
+            String value = request.getHeader(CREDENTIAL_HEADERS[i]);
+            if (value != null) credentials.append(CREDENTIAL_HEADERS[i]).append(": ").append(value).append("\r\n");
+        }
+        if (credentials.length() == 0) return url;
+
+        try
+        {
+            byte digest[] = MessageDigest.getInstance("SHA-1").digest(credentials.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuffer key = new StringBuffer(url).append('#');
+            for (int i = 0; i < digest.length; i++)
+                key.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * How long a response can be cached for in milliseconds, 0 if it can't be
+     */
+    private static long getTtl(HttpResponse response)
+    {
+        String cacheControl = response.getHeader("cache-control");
+        if (cacheControl == null) return SEGMENT_TTL;
+
+        long ttl = SEGMENT_TTL;
+        String[] directives = cacheControl.toLowerCase().split(",");
+        for (int i = 0; i < directives.length; i++)
+        {
+            String directive = directives[i].trim();
+            if (directive.equals("private") || directive.equals("no-store") || directive.equals("no-cache"))
+                return 0;
+            if (directive.startsWith("max-age="))
+            {
+                try
+                {
+                    ttl = Math.min(ttl, Long.parseLong(directive.substring(8).trim()) * 1000);
+                }
+                catch (NumberFormatException e)
+                {}
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * Fetch a segment into the cache
+     */
+    private void fetch(HttpRequest template, String url, String key)
+    {
+        HttpResponse response = null;
+        try
+        {
+            HttpRequest request = new HttpRequest(template, url);
+            response = request.execute();
+            long length = response.getContentLength();
+            long ttl = getTtl(response);
+            if (response.getResponseCode() != 200 || length > cache.getMaxBytes() / 4 || ttl <= 0)
+            {
+                cache.cancel(key);
+                return;
+            }
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length : 100000);
+            InputStream in = response.getInputStream();
+            TokenBucket readBucket = shaper != null ? shaper.getOriginBucket(request.getOrigin()) : null;
+            byte[] buf = new byte[20000];
+            int bytesRead = -2;
+            while ((length < 0 || body.size() < length) && (bytesRead = in.read(buf)) >= 0)
+            {
+                if (readBucket != null)
+                    readBucket.take(bytesRead, false);
+                body.write(buf, 0, bytesRead);
+                if (body.size() > cache.getMaxBytes() / 4)
+                {
+                    cache.cancel(key);
+                    return;
+                }
+            }
+            if (length >= 0 && body.size() < length)
+            {
+                cache.cancel(key);
+                return;
+            }
+
+            cache.put(key, response.getResponseBytes(), body.toByteArray(), ttl);
+            log.debug("Prefetched " + url + " " + body.size());
+        }
+        catch (IOException e)
+        {
+            log.debug("Prefetch failed " + url + " " + e);
+            cache.cancel(key);
+        }
+        finally
+        {
+            try
+            {
+                if (response != null) response.close();
+            }
+            catch (IOException e)
+            {}
+        }
+    }
+
+    /**
+     * A segment to fetch and the request to copy headers from
+     */
+    private static class PrefetchJob
+    {
+        HttpRequest template = null;
+        String url = null;
+        String key = null;
+
+        PrefetchJob(HttpRequest template, String url, String key)
+        {
+            this.template = template;
+            this.url = url;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Takes segments off the queue and fetches them
+     *
+     * @author conorhunt
+     *
+     */
+    private class PrefetchThread extends Thread
+    {
+        public void run()
+        {
+            while (true)
+            {
+                PrefetchJob job = null;
+                synchronized (queue)
+                {
+                    while (queue.isEmpty())
+                    {
+                        try
+                        {
+                            queue.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    job = queue.removeFirst();
+                }
+                fetch(job.template, job.url, job.key);
+            }
+        }
+    }
+}
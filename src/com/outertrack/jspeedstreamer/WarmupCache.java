@@ -0,0 +1,256 @@
+package com.outertrack.jspeedstreamer;
+
+import com.outertrack.jspeedstreamer.http.ByteRange;
+import com.outertrack.jspeedstreamer.http.HttpResponse;
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+import com.outertrack.jspeedstreamer.utils.TokenBucket;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A directory of streams that were fetched ahead of time by prefetch jobs, so that players can be
+ * served from the disk.
+ *
+ * Each URL is stored under a hash of it: the data in a file named by the hash, the journal of the
+ * parts that are there (while the job runs, or for good if only part of the file was wanted) and a
+ * .meta file with the length, content type, ETag and Last-Modified date. A file with no journal is
+ * complete.
+ *
+ * The ETag or date is sent in an If-Range header whenever the server is asked for more of a stream,
+ * so that a cached part of one version is never joined up with the rest of another.
+ *
+ * The jobs are run by a FileDownloader in the background.
+ *
+ * @author conorhunt
+ *
+ */
+public class WarmupCache
+{
+    private static MultiLogger log = MultiLogger.getLogger(WarmupCache.class);
+
+    private File dir = null;
+    private FileDownloader downloader = null;
+
+    /**
+     * @param dir directory to keep the files in
+     * @param connectionCount number of connections the jobs share
+     * @param parallelFiles number of jobs run at the same time
+     * @param segmentSize
+     */
+    public WarmupCache(String dir, int connectionCount, int parallelFiles, int segmentSize)
+    {
+        this.dir = new File(dir);
+        this.dir.mkdirs();
+        downloader = new FileDownloader(dir, connectionCount, parallelFiles, segmentSize);
+        downloader.startBackground();
+        log.info("Prefetch jobs are saved in " + this.dir);
+    }
+
+    public FileDownloader getDownloader()
+    {
+        return downloader;
+    }
+
+    /**
+     * Submit a job to fetch a URL into the cache
+     *
+     * @param url
+     * @param range part of it to fetch, null for all of it
+     * @param priority
+     * @return
+     * @throws IOException if the URL can't be fetched
+     */
+    public FileDownloader.FileDownload submit(String url, ByteRange range, int priority) throws IOException
+    {
+        String key = key(url);
+        return downloader.submit(url, new File(dir, key), new File(dir, key + ".meta"), range, priority);
+    }
+
+    /**
+     * @param url
+     * @return what there is of the URL in the cache, or null if there is nothing
+     */
+    public CachedFile find(String url)
+    {
+        String key = key(url);
+        File file = new File(dir, key);
+        File metaFile = new File(dir, key + ".meta");
+        if (!file.exists()) return null;
+
+        Meta meta = readMeta(metaFile);
+        if (meta == null || meta.length <= 0 || file.length() != meta.length) return null;
+        return new CachedFile(file, new File(dir, key + ".journal"), meta.length, meta.contentType, meta.getValidator());
+    }
+
+    /**
+     * @param metaFile
+     * @return what a meta file says, or null if there isn't one or it can't be read
+     */
+    static Meta readMeta(File metaFile)
+    {
+        if (!metaFile.exists()) return null;
+
+        Meta meta = new Meta();
+        BufferedReader in = null;
+        try
+        {
+            in = new BufferedReader(new FileReader(metaFile));
+            String line = null;
+            while ((line = in.readLine()) != null)
+            {
+                if (line.startsWith("length ")) meta.length = Long.parseLong(line.substring(7));
+                else if (line.startsWith("content-type ")) meta.contentType = line.substring(13);
+                else if (line.startsWith("etag ")) meta.etag = line.substring(5);
+                else if (line.startsWith("last-modified ")) meta.lastModified = line.substring(14);
+            }
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+        finally
+        {
+            try
+            {
+                if (in != null) in.close();
+            }
+            catch (IOException e)
+            {}
+        }
+        return meta;
+    }
+
+    private static String key(String url)
+    {
+        try
+        {
+            byte digest[] = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuffer key = new StringBuffer();
+            for (int i = 0; i < digest.length; i++)
+                key.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The contents of a .meta file
+     */
+    static class Meta
+    {
+        long length = -1;
+        String contentType = null;
+        String etag = null;
+        String lastModified = null;
+
+        String getValidator()
+        {
+            return HttpResponse.getValidator(etag, lastModified);
+        }
+    }
+
+    /**
+     * A URL that is at least partly in the cache
+     */
+    public static class CachedFile
+    {
+        private File file = null;
+        private File journalFile = null;
+        private long length = 0;
+        private String contentType = null;
+        private String validator = null;
+
+        CachedFile(File file, File journalFile, long length, String contentType, String validator)
+        {
+            this.file = file;
+            this.journalFile = journalFile;
+            this.length = length;
+            this.contentType = contentType;
+            this.validator = validator;
+        }
+
+        public long getLength()
+        {
+            return length;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        /**
+         * @return the ETag or Last-Modified date of the version in the cache, null if the server didn't
+         *         send either
+         */
+        public String getValidator()
+        {
+            return validator;
+        }
+
+        /**
+         * @param position
+         * @return the number of bytes from the position on that are in the cache without a gap
+         */
+        public long getCoveredLength(long position)
+        {
+            if (!journalFile.exists()) return Math.max(0, length - position);
+
+            List<ByteRange> done = FileDownloader.readJournal(journalFile, length);
+            if (done == null) return 0;
+
+            // The journal is sorted by start, keep going while the ranges join up
+            long end = position;
+            for (int i = 0; i < done.size(); i++)
+            {
+                ByteRange range = done.get(i);
+                if (range.getStart() > end) break;
+                end = Math.max(end, range.getEnd());
+            }
+            return end - position;
+        }
+
+        /**
+         * Copy part of the file to a stream
+         *
+         * @param position
+         * @param count
+         * @param out
+         * @param writeBucket bucket the writes are taken from when bandwidth is shaped, or null
+         * @throws IOException
+         */
+        public void copyTo(long position, long count, OutputStream out, TokenBucket writeBucket) throws IOException
+        {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try
+            {
+                in.seek(position);
+                byte buf[] = new byte[65536];
+                while (count > 0)
+                {
+                    int bytesRead = in.read(buf, 0, (int) Math.min(buf.length, count));
+                    if (bytesRead < 0) throw new EOFException("Cached file " + file + " is short");
+                    if (writeBucket != null)
+                        writeBucket.take(bytesRead, false);
+                    out.write(buf, 0, bytesRead);
+                    count -= bytesRead;
+                }
+                out.flush();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+}
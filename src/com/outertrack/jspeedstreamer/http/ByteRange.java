@@ -0,0 +1,41 @@
+package com.outertrack.jspeedstreamer.http;
+
+/**
+ * A range of bytes in a stream. The start is inclusive and the end is exclusive, the same as the
+ * blocks that download threads are given. HttpRequest converts these to the inclusive form used by
+ * the HTTP Range header.
+ *
+ * @author conorhunt
+ *
+ */
+public class ByteRange
+{
+    private long start = 0;
+    private long end = 0;
+
+    public ByteRange(long start, long end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart()
+    {
+        return start;
+    }
+
+    public long getEnd()
+    {
+        return end;
+    }
+
+    public long getLength()
+    {
+        return end - start;
+    }
+
+    public String toString()
+    {
+        return start + " -> " + end;
+    }
+}
@@ -0,0 +1,270 @@
+package com.outertrack.jspeedstreamer.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+
+/**
+ * Opens the connections to servers. Connections can be opened ahead of time with prewarm(), all of
+ * them at once, so that a split download doesn't wait for them one after the other when its threads
+ * start. A request to the same server takes one of those connections instead of opening its own, or
+ * waits for one that is still being opened.
+ *
+ * Connections are only kept until they are used, requests still aren't sent over a connection that
+ * has been used before. Ones that aren't used within IDLE_TIMEOUT are closed by a reaper thread.
+ *
+ * @author conorhunt
+ *
+ */
+public class ConnectionPool
+{
+    private static MultiLogger log = MultiLogger.getLogger(ConnectionPool.class);
+
+    // Opened connections that haven't been used in this long are closed, servers drop idle ones anyway
+    private static final long IDLE_TIMEOUT = 10000;
+
+    // Opened and opening connections for each server and local address
+    private static HashMap<String, Warm> warmConnections = new HashMap<String, Warm>();
+
+    private static Thread reaper = null;
+
+    /**
+     * Get a connection to a server, one that was opened ahead of time if there is one
+     *
+     * @param host
+     * @param port
+     * @param localAddress local address to make the connection from, null for the default
+     * @param connectTimeout
+     * @return
+     * @throws IOException
+     */
+    public static Socket connect(String host, int port, InetAddress localAddress, int connectTimeout) throws IOException
+    {
+        Socket socket = takeWarm(key(host, port, localAddress), connectTimeout);
+        if (socket != null) return socket;
+        return open(host, port, localAddress, connectTimeout);
+    }
+
+    /**
+     * Start opening connections to a server in the background, all at the same time. Connections
+     * already open or opening for it count towards the number.
+     *
+     * @param host
+     * @param port
+     * @param count number of connections wanted
+     * @param localAddresses local address for each connection, null for the default
+     * @param connectTimeout
+     */
+    public static void prewarm(final String host, final int port, int count, InetAddress localAddresses[], final int connectTimeout)
+    {
+        startReaper();
+
+        // Work out how many more connections each local address needs
+        HashMap<String, Integer> wanted = new HashMap<String, Integer>();
+        HashMap<String, InetAddress> addresses = new HashMap<String, InetAddress>();
+        for (int i = 0; i < count; i++)
+        {
+            InetAddress localAddress = localAddresses != null ? localAddresses[i % localAddresses.length] : null;
+            String key = key(host, port, localAddress);
+            Integer n = wanted.get(key);
+            wanted.put(key, n == null ? 1 : n.intValue() + 1);
+            addresses.put(key, localAddress);
+        }
+
+        for (String key : wanted.keySet())
+        {
+            int needed = 0;
+            synchronized (warmConnections)
+            {
+                Warm warm = getWarm(key);
+                needed = wanted.get(key).intValue() - warm.sockets.size() - warm.opening;
+                if (needed > 0) warm.opening += needed;
+            }
+
+            final String warmKey = key;
+            final InetAddress localAddress = addresses.get(key);
+            for (int i = 0; i < needed; i++)
+            {
+                Thread t = new Thread()
+                {
+                    public void run()
+                    {
+                        Socket socket = null;
+                        try
+                        {
+                            socket = open(host, port, localAddress, connectTimeout);
+                        }
+                        catch (IOException e)
+                        {
+                            log.debug("Couldn't prewarm connection to " + host + ":" + port + " " + e);
+                        }
+                        synchronized (warmConnections)
+                        {
+                            Warm warm = getWarm(warmKey);
+                            warm.opening--;
+                            if (socket != null)
+                            {
+                                warm.sockets.add(socket);
+                                warm.openTimes.add(System.currentTimeMillis());
+                            }
+                            warmConnections.notifyAll();
+                        }
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            }
+            if (needed > 0) log.debug("Prewarming " + needed + " connections for " + key);
+        }
+    }
+
+    /**
+     * Take an opened connection, waiting for one that is being opened if there are none
+     *
+     * @return null if there are none open or opening
+     */
+    private static Socket takeWarm(String key, int connectTimeout)
+    {
+        long deadline = System.currentTimeMillis() + connectTimeout;
+        synchronized (warmConnections)
+        {
+            Warm warm = warmConnections.get(key);
+            if (warm == null) return null;
+            while (true)
+            {
+                closeIdle(warm);
+                if (warm.sockets.size() > 0)
+                {
+                    warm.openTimes.remove(0);
+                    return warm.sockets.remove(0);
+                }
+
+                long wait = deadline - System.currentTimeMillis();
+                if (warm.opening == 0 || wait <= 0) return null;
+                try
+                {
+                    warmConnections.wait(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the thread that closes connections nobody took, the first time connections are prewarmed
+     */
+    private static synchronized void startReaper()
+    {
+        if (reaper != null) return;
+        reaper = new Thread()
+        {
+            public void run()
+            {
+                while (true)
+                {
+                    try
+                    {
+                        Thread.sleep(1000);
+                    }
+                    catch (InterruptedException e)
+                    {}
+                    closeAllIdle();
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private static void closeAllIdle()
+    {
+        synchronized (warmConnections)
+        {
+            Iterator<Warm> it = warmConnections.values().iterator();
+            while (it.hasNext())
+            {
+                Warm warm = it.next();
+                closeIdle(warm);
+                if (warm.sockets.isEmpty() && warm.opening == 0) it.remove();
+            }
+        }
+    }
+
+    private static void closeIdle(Warm warm)
+    {
+        long now = System.currentTimeMillis();
+        while (warm.sockets.size() > 0 && now - warm.openTimes.get(0).longValue() > IDLE_TIMEOUT)
+        {
+            log.debug("Closing unused connection to " + warm.sockets.get(0).getInetAddress());
+            warm.openTimes.remove(0);
+            try
+            {
+                warm.sockets.remove(0).close();
+            }
+            catch (IOException e)
+            {}
+        }
+    }
+
+    /**
+     * Open a new connection, trying each of the server's addresses in turn
+     */
+    private static Socket open(String host, int port, InetAddress localAddress, int connectTimeout) throws IOException
+    {
+        InetAddress addresses[] = HostResolver.resolve(host);
+        IOException lastError = null;
+        for (int i = 0; i < addresses.length; i++)
+        {
+            Socket socket = new Socket();
+            try
+            {
+                if (localAddress != null)
+                    socket.bind(new InetSocketAddress(localAddress, 0));
+                socket.connect(new InetSocketAddress(addresses[i], port), connectTimeout);
+                return socket;
+            }
+            catch (IOException e)
+            {
+                socket.close();
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private static Warm getWarm(String key)
+    {
+        Warm warm = warmConnections.get(key);
+        if (warm == null)
+        {
+            warm = new Warm();
+            warmConnections.put(key, warm);
+        }
+        return warm;
+    }
+
+    private static String key(String host, int port, InetAddress localAddress)
+    {
+        return host + ":" + port + (localAddress != null ? "/" + localAddress.getHostAddress() : "");
+    }
+
+    /**
+     * Connections to one server from one local address
+     */
+    private static class Warm
+    {
+        private List<Socket> sockets = new ArrayList<Socket>();
+        private List<Long> openTimes = new ArrayList<Long>();
+        private int opening = 0;
+    }
+}
@@ -0,0 +1,89 @@
+package com.outertrack.jspeedstreamer.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+
+import com.outertrack.jspeedstreamer.utils.MultiLogger;
+
+/**
+ * Caches host name lookups so that the connections of a split download don't each look the name up
+ * again. Only one thread looks up a name at a time, any others asking for it wait for the answer.
+ *
+ * Java doesn't give out the TTL of the DNS records so answers are kept for a fixed time, set with
+ * -dns_ttl. Failed lookups aren't kept.
+ *
+ * @author conorhunt
+ *
+ */
+public class HostResolver
+{
+    private static MultiLogger log = MultiLogger.getLogger(HostResolver.class);
+
+    private static long ttl = 60000;
+    private static HashMap<String, Entry> cache = new HashMap<String, Entry>();
+
+    /**
+     * @param millis how long lookups are kept for
+     */
+    public static void setTtl(long millis)
+    {
+        ttl = millis;
+    }
+
+    /**
+     * @param host
+     * @return all of the addresses of the host
+     * @throws UnknownHostException
+     */
+    public static InetAddress[] resolve(String host) throws UnknownHostException
+    {
+        Entry entry = null;
+        synchronized (cache)
+        {
+            entry = cache.get(host);
+            if (entry == null || entry.isExpired())
+            {
+                entry = new Entry();
+                cache.put(host, entry);
+            }
+        }
+
+        synchronized (entry)
+        {
+            if (entry.addresses == null)
+            {
+                try
+                {
+                    long startTime = System.currentTimeMillis();
+                    entry.addresses = InetAddress.getAllByName(host);
+                    entry.expires = System.currentTimeMillis() + ttl;
+                    log.debug("Resolved " + host + " in " + (System.currentTimeMillis() - startTime) + "ms");
+                }
+                catch (UnknownHostException e)
+                {
+                    synchronized (cache)
+                    {
+                        if (cache.get(host) == entry) cache.remove(host);
+                    }
+                    throw e;
+                }
+            }
+            return entry.addresses;
+        }
+    }
+
+    /**
+     * The addresses of one host, null until the lookup is done
+     */
+    private static class Entry
+    {
+        private volatile InetAddress[] addresses = null;
+        private volatile long expires = 0;
+
+        private boolean isExpired()
+        {
+            return addresses != null && expires < System.currentTimeMillis();
+        }
+    }
+}
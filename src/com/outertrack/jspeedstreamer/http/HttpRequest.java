@@ -1,10 +1,13 @@
 package com.outertrack.jspeedstreamer.http;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import com.outertrack.jspeedstreamer.utils.MultiLogger;
@@ -37,8 +40,9 @@ public class HttpRequest
     
     // If the request comes in with a Range header this contains the start of that range
     private long originalStart = 0;
-
-    private HashMap cachedSockets = new HashMap();
+    
+    // True if the request was made to the proxy itself, with just a path, rather than through it
+    private boolean direct = false;
     
     /**
      * After a request has been made this object saves the headers and request and then that request
@@ -54,6 +58,65 @@ public class HttpRequest
         parseHttpRequest(input);
     }
 
+    /**
+     * Creates a GET request for another URL on behalf of the client that made the original request.
+     * The headers (cookies, user agent etc.) are copied from the original but any Range is dropped.
+     * 
+     * @param original
+     * @param url absolute http:// URL to request
+     * @throws IOException if the URL can't be parsed
+     */
+    public HttpRequest(HttpRequest original, String url) throws IOException
+    {
+        setUrl(url, original.firstReqLine.endsWith("HTTP/1.0") ? " HTTP/1.0" : " HTTP/1.1");
+        
+        headers = (HashMap<String, String>) original.headers.clone();
+        headers.remove("range");
+        headers.remove("content-length");
+        headers.remove("proxy-connection");
+        headers.put("connection", "close");
+        headers.put("host", hostPort == 80 ? host : host + ":" + hostPort);
+    }
+
+    /**
+     * Creates a plain GET request for a URL, for downloads that aren't made for a proxy client
+     * 
+     * @param url absolute http:// URL to request
+     * @throws IOException if the URL can't be parsed
+     */
+    public HttpRequest(String url) throws IOException
+    {
+        setUrl(url, " HTTP/1.1");
+        headers.put("user-agent", "JSpeedStreamer");
+        headers.put("connection", "close");
+        headers.put("host", hostPort == 80 ? host : host + ":" + hostPort);
+    }
+
+    private void setUrl(String url, String protocol) throws IOException
+    {
+        URI uri = null;
+        try
+        {
+            uri = new URI(url);
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException("Bad URL " + url);
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null)
+            throw new IOException("Only http URLs can be requested: " + url);
+        
+        String path = uri.getRawPath();
+        if (path == null || path.length() == 0) path = "/";
+        if (uri.getRawQuery() != null) path += "?" + uri.getRawQuery();
+        
+        requestType = "GET";
+        host = uri.getHost();
+        hostPort = uri.getPort() > 0 ? uri.getPort() : 80;
+        fileName = uri.getRawPath() == null ? "" : uri.getRawPath().substring(uri.getRawPath().lastIndexOf('/') + 1);
+        firstReqLine = "GET " + path + protocol;
+    }
+
     /**
      * Read a http request and parse out the headers and the GET/POST line
      * 
@@ -96,6 +159,7 @@ public class HttpRequest
         
         // Look for the host header if it exists
         host = headers.get("host");
+        direct = getPath().startsWith("/") && firstReqLine.indexOf("jeturl=") < 0;
         
         // Test to see if this is a special URL containing the real URL
         if(firstReqLine.indexOf("jeturl=") >= 0)
@@ -146,6 +210,71 @@ public class HttpRequest
 		return fileName;
 	}
 
+    /**
+     * @return the absolute URL of this request, used to identify it no matter how the client asked for it
+     */
+    public String getUrl()
+    {
+        String target = getPath();
+        if (target.indexOf("://") >= 0)
+        {
+            int pathIndex = target.indexOf('/', target.indexOf("://") + 3);
+            target = pathIndex >= 0 ? target.substring(pathIndex) : "/";
+        }
+        return "http://" + host + (hostPort != 80 ? ":" + hostPort : "") + target;
+    }
+
+    /**
+     * @return the target of the request as the client sent it, a path and query or an absolute URL
+     */
+    public String getPath()
+    {
+        return firstReqLine.substring(firstReqLine.indexOf(' ') + 1, firstReqLine.lastIndexOf(' '));
+    }
+
+    /**
+     * @return true if the request was made to the proxy itself rather than through it to a server
+     */
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    public String getHeader(String name)
+    {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Sets a header that is sent every time the request is executed
+     * 
+     * @param name
+     * @param value the value, or null to remove the header
+     */
+    public void setHeader(String name, String value)
+    {
+        if (value == null)
+            headers.remove(name.toLowerCase());
+        else
+            headers.put(name.toLowerCase(), value);
+    }
+
+    /**
+     * @return host:port of the server this request goes to
+     */
+    public String getOrigin()
+    {
+        return host + ":" + hostPort;
+    }
+
+    /**
+     * @return the start of the Range header in the original request, or 0 if there wasn't one
+     */
+    public long getOriginalStart()
+    {
+        return originalStart;
+    }
+
     /**
      * After a request has been made this object saves the headers and request and then that request
      * can be re-executed by calling this method.
@@ -165,17 +294,67 @@ public class HttpRequest
     
     public HttpResponse execute(long startPosition, long endPosition, int timeout) throws IOException
     {
-        // TODO: Support keep-alive/persistence and re-use sockets... or.. use some other implementation (HTTPClient?) that supports this
-        ArrayList socketList = (ArrayList) cachedSockets.get(host + hostPort);
-        
-        Socket server = null;
-        if(socketList != null && socketList.size() > 0)
-         server = (Socket) socketList.remove(0);
-        else
+        return execute(startPosition, endPosition, timeout, timeout);
+    }
+    
+    /**
+     * @param startPosition
+     * @param endPosition
+     * @param connectTimeout how long to wait for the connection to be made
+     * @param timeout how long to wait for each read from the connection
+     * @return
+     * @throws IOException
+     */
+    public HttpResponse execute(long startPosition, long endPosition, int connectTimeout, int timeout) throws IOException
+    {
+        return execute(startPosition, endPosition, connectTimeout, timeout, null);
+    }
+    
+    /**
+     * @param startPosition
+     * @param endPosition
+     * @param connectTimeout
+     * @param timeout
+     * @param localAddress local address to make the connection from, null for the default
+     * @return
+     * @throws IOException
+     */
+    public HttpResponse execute(long startPosition, long endPosition, int connectTimeout, int timeout, InetAddress localAddress) throws IOException
+    {
+        return execute("bytes=" + (originalStart + startPosition) + "-" + (originalStart + endPosition), connectTimeout, timeout, localAddress);
+    }
+    
+    /**
+     * Re-executes the request asking for several disjoint ranges of the stream at once. The ranges
+     * are relative to the start of the original request and their ends are exclusive.
+     * 
+     * If the server supports it the response will be multipart/byteranges, but it is free to
+     * coalesce the ranges or ignore the Range header altogether so the caller has to check.
+     * 
+     * @param ranges
+     * @param connectTimeout
+     * @param timeout
+     * @param localAddress local address to make the connection from, null for the default
+     * @return
+     * @throws IOException
+     */
+    public HttpResponse execute(List<ByteRange> ranges, int connectTimeout, int timeout, InetAddress localAddress) throws IOException
+    {
+        StringBuffer range = new StringBuffer("bytes=");
+        for (int i = 0; i < ranges.size(); i++)
         {
-           server = new Socket(host, hostPort);
-           server.setSoTimeout(timeout);
+            ByteRange r = ranges.get(i);
+            if (i > 0) range.append(',');
+            range.append(originalStart + r.getStart()).append('-').append(originalStart + r.getEnd() - 1);
         }
+        return execute(range.toString(), connectTimeout, timeout, localAddress);
+    }
+    
+    private HttpResponse execute(String range, int connectTimeout, int timeout, InetAddress localAddress) throws IOException
+    {
+        // TODO: Support keep-alive/persistence and re-use sockets... or.. use some other implementation (HTTPClient?) that supports this
+        Socket server = ConnectionPool.connect(host, hostPort, localAddress, connectTimeout);
+        server.setSoTimeout(timeout);
         
         BufferedOutputStream serverOut = new BufferedOutputStream(server.getOutputStream());
         PrintWriter serverPrintOut = new PrintWriter(serverOut);
@@ -185,10 +364,9 @@ public class HttpRequest
         
         HashMap<String, String> newHeaders = (HashMap<String, String>) headers.clone();
         
-        // If there is a range specified in the arguments then replace or create a new Range header
-        if (startPosition > 0 || endPosition > 0)
+        if (range != null)
         {            
-            newHeaders.put("range", "bytes=" + (originalStart + startPosition) + "-" + (originalStart + endPosition));     
+            newHeaders.put("range", range);     
         }       
         
         Iterator it = newHeaders.entrySet().iterator();
@@ -218,10 +396,36 @@ public class HttpRequest
 
     public HttpResponse execute() throws IOException
     {
-        HttpResponse response = execute(0, 0);
+        HttpResponse response = execute((String) null, 5000, 5000, null);
         return response;
     }
 
+    /**
+     * Asks for just the first byte of the request. A 206 answer shows that the server handles Range
+     * requests and the length in its Content-Range tells us how big the stream is.
+     * 
+     * @param timeout
+     * @return
+     * @throws IOException
+     */
+    public HttpResponse probe(int timeout) throws IOException
+    {
+        return execute("bytes=" + originalStart + "-" + originalStart, timeout, timeout, null);
+    }
+
+    /**
+     * Start opening connections to the server in the background so that they are ready when the
+     * request is executed
+     * 
+     * @param count number of connections
+     * @param connectTimeout
+     * @param localAddresses local address for each connection, null for the default
+     */
+    public void prewarm(int count, int connectTimeout, InetAddress localAddresses[])
+    {
+        ConnectionPool.prewarm(host, hostPort, count, localAddresses, connectTimeout);
+    }
+
     /**
      * Read a single line from an input stream and write out the data including line endings to an
      * output stream.
@@ -2,7 +2,12 @@ package com.outertrack.jspeedstreamer.http;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import com.outertrack.jspeedstreamer.utils.MultiLogger;
 
@@ -24,6 +29,19 @@ public class HttpResponse
     
     private HashMap<String, String> headers = new HashMap<String, String>();
     
+    // Parsed Content-Range header of a 206 response, -1 when there isn't one
+    private long contentRangeStart = -1;
+    private long contentRangeEnd = -1;
+    private long instanceLength = -1;
+    
+    // Boundary string if this is a multipart/byteranges response to a request for several ranges
+    private String boundary = null;
+    
+    // The part of a multipart/byteranges response that is currently being read
+    private long partStart = -1;
+    private long partEnd = -1;
+    private long partRemaining = 0;
+    
     // For ease of writing the headers to the proxy client we just store them in a byte array
     // this way we can just dump the server response to the client by writing this array
     private byte[] responseByteHeaders = null;
@@ -40,6 +58,71 @@ public class HttpResponse
         return responseByteHeaders;
     }
 
+    /**
+     * The response headers for sending the body to a client without saying how long it is, it is
+     * read until the connection closes. For streams whose length isn't known yet.
+     * 
+     * @return
+     */
+    public byte[] getOpenEndedResponseBytes()
+    {
+        StringBuffer out = new StringBuffer();
+        String lines[] = new String(responseByteHeaders, StandardCharsets.ISO_8859_1).split("\r\n");
+        for (int i = 0; i < lines.length; i++)
+        {
+            String name = lines[i].indexOf(':') > 0 ? lines[i].substring(0, lines[i].indexOf(':')).trim().toLowerCase() : "";
+            if (lines[i].length() == 0 || name.equals("content-length") || name.equals("transfer-encoding") || name.equals("connection")
+                    || name.equals("keep-alive") || name.equals("proxy-connection"))
+                continue;
+            out.append(lines[i]).append("\r\n");
+        }
+        out.append("Connection: close\r\n\r\n");
+        return out.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses a HTTP date, as in the Date and Last-Modified headers
+     * 
+     * @param value
+     * @return milliseconds since 1970, or -1 if the value can't be parsed
+     */
+    public static long parseDate(String value)
+    {
+        if (value == null) return -1;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try
+        {
+            return format.parse(value.trim()).getTime();
+        }
+        catch (ParseException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Picks the validator to send in an If-Range header to be sure of getting the same version of a
+     * stream. Weak ETags aren't allowed in If-Range so the Last-Modified date is used instead.
+     * 
+     * @param etag
+     * @param lastModified
+     * @return the validator, or null if there isn't one
+     */
+    public static String getValidator(String etag, String lastModified)
+    {
+        if (etag != null && !etag.startsWith("W/")) return etag;
+        return lastModified;
+    }
+
+    /**
+     * @return the validator for this version of the stream, or null if the server didn't send one
+     */
+    public String getValidator()
+    {
+        return getValidator(getHeader("etag"), getHeader("last-modified"));
+    }
+
     public void close() throws IOException
     {
         if (socket != null) socket.close();
@@ -74,6 +157,28 @@ public class HttpResponse
         if (contentLength != null)
             this.contentLength = Long.parseLong(contentLength);
         
+        long[] contentRange = parseContentRange(headers.get("content-range"));
+        if (contentRange != null)
+        {
+            contentRangeStart = contentRange[0];
+            contentRangeEnd = contentRange[1];
+            instanceLength = contentRange[2];
+        }
+        
+        String contentType = headers.get("content-type");
+        if (contentType != null && contentType.toLowerCase().startsWith("multipart/byteranges"))
+        {
+            int boundaryIndex = contentType.toLowerCase().indexOf("boundary=");
+            if (boundaryIndex >= 0)
+            {
+                boundary = contentType.substring(boundaryIndex + 9).trim();
+                int semiColon = boundary.indexOf(';');
+                if (semiColon >= 0) boundary = boundary.substring(0, semiColon).trim();
+                if (boundary.startsWith("\"") && boundary.endsWith("\"") && boundary.length() > 1)
+                    boundary = boundary.substring(1, boundary.length() - 1);
+            }
+        }
+        
        // if(this.content)
         //    Connection header including the connection-token close
             
@@ -83,6 +188,99 @@ public class HttpResponse
         this.responseByteHeaders = out.toByteArray();
     }
 
+    /**
+     * Parses a Content-Range header value of the form "bytes first-last/length". The length can be
+     * '*' if the server doesn't know it.
+     * 
+     * @param value
+     * @return {first, last, length} with length -1 when unknown, or null if the value can't be parsed
+     */
+    public static long[] parseContentRange(String value)
+    {
+        if (value == null) return null;
+        try
+        {
+            int space = value.indexOf(' ');
+            int dash = value.indexOf('-', space + 1);
+            int slash = value.indexOf('/', dash + 1);
+            if (space < 0 || dash < 0 || slash < 0) return null;
+            
+            String length = value.substring(slash + 1).trim();
+            return new long[] { Long.parseLong(value.substring(space + 1, dash).trim()),
+                Long.parseLong(value.substring(dash + 1, slash).trim()),
+                length.equals("*") ? -1 : Long.parseLong(length) };
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Moves on to the next part of a multipart/byteranges response, skipping whatever is left unread
+     * of the current one. After this returns true the part's range is available from getPartStart()
+     * and getPartEnd() and its body can be read with readPart().
+     * 
+     * @return false when there are no more parts
+     * @throws IOException
+     */
+    public boolean nextPart() throws IOException
+    {
+        while (partRemaining > 0)
+        {
+            long skipped = input.skip(partRemaining);
+            if (skipped <= 0)
+            {
+                if (input.read() < 0) return false;
+                skipped = 1;
+            }
+            partRemaining -= skipped;
+        }
+        
+        // Find the next delimiter. This skips the preamble before the first part and the line ending
+        // that finishes the body of the previous part.
+        ByteArrayOutputStream discard = new ByteArrayOutputStream();
+        String line = null;
+        do
+        {
+            discard.reset();
+            line = readLine(input, discard);
+            if (discard.size() == 0) return false;
+        } while (!line.startsWith("--" + boundary));
+        
+        if (line.startsWith("--" + boundary + "--")) return false;
+        
+        long[] range = null;
+        while ((line = readLine(input, discard)).length() > 0)
+        {
+            int colonIndex = line.indexOf(':');
+            if (colonIndex >= 0 && line.substring(0, colonIndex).trim().equalsIgnoreCase("content-range"))
+                range = parseContentRange(line.substring(colonIndex + 1).trim());
+        }
+        if (range == null) throw new IOException("multipart/byteranges part without a Content-Range");
+        
+        partStart = range[0];
+        partEnd = range[1];
+        partRemaining = partEnd - partStart + 1;
+        return true;
+    }
+    
+    /**
+     * Reads body bytes of the current multipart/byteranges part.
+     * 
+     * @param buf
+     * @return number of bytes read, or -1 when the end of the part has been reached
+     * @throws IOException
+     */
+    public int readPart(byte[] buf) throws IOException
+    {
+        if (partRemaining <= 0) return -1;
+        
+        int bytesRead = input.read(buf, 0, (int) Math.min(buf.length, partRemaining));
+        if (bytesRead > 0) partRemaining -= bytesRead;
+        return bytesRead;
+    }
+
     /**
      * Read a single line from an input stream and write out the data including line endings to an
      * output stream.
@@ -131,4 +329,42 @@ public class HttpResponse
     {
         return contentLength;
     }
+
+    public String getHeader(String name)
+    {
+        return headers.get(name.toLowerCase());
+    }
+
+    public long getContentRangeStart()
+    {
+        return contentRangeStart;
+    }
+
+    public long getContentRangeEnd()
+    {
+        return contentRangeEnd;
+    }
+
+    /**
+     * @return the full length of the resource from the Content-Range header, -1 if unknown
+     */
+    public long getInstanceLength()
+    {
+        return instanceLength;
+    }
+
+    public boolean isMultipartByteRanges()
+    {
+        return boundary != null;
+    }
+
+    public long getPartStart()
+    {
+        return partStart;
+    }
+
+    public long getPartEnd()
+    {
+        return partEnd;
+    }
 }
@@ -0,0 +1,248 @@
+package com.outertrack.jspeedstreamer.http;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses HLS (.m3u8) and DASH (.mpd) playlists to find the media segments that a player is going to
+ * ask for next.
+ *
+ * HLS media playlists list every segment. DASH manifests either list them with SegmentURL elements or
+ * describe them with a SegmentTemplate. Only $Number$ templates are understood, the segments that
+ * follow a requested one are worked out by incrementing the number in its URL. $Time$ templates
+ * need the SegmentTimeline and are ignored.
+ *
+ * @author conorhunt
+ *
+ */
+public class MediaPlaylist
+{
+    private String url = null;
+
+    // Absolute URLs of the segments in playlist order
+    private List<String> segments = new ArrayList<String>();
+
+    // Absolute URLs of SegmentTemplates with $Number$ left in them
+    private List<String> numberTemplates = new ArrayList<String>();
+
+    // Live playlists keep growing, so the segments worth fetching are at the end
+    private boolean live = false;
+
+    private MediaPlaylist(String url)
+    {
+        this.url = url;
+    }
+
+    /**
+     * @return true if the URL or content type of a response says it is an HLS or DASH playlist
+     */
+    public static boolean isPlaylist(String url, String contentType)
+    {
+        String path = url.toLowerCase();
+        if (path.indexOf('?') >= 0) path = path.substring(0, path.indexOf('?'));
+        if (path.endsWith(".m3u8") || path.endsWith(".mpd")) return true;
+
+        if (contentType == null) return false;
+        contentType = contentType.toLowerCase();
+        return contentType.indexOf("mpegurl") >= 0 || contentType.indexOf("dash+xml") >= 0;
+    }
+
+    /**
+     * Parse a playlist
+     *
+     * @param url URL the playlist was fetched from, relative segment URLs are resolved against it
+     * @param body
+     * @return
+     */
+    public static MediaPlaylist parse(String url, String body)
+    {
+        MediaPlaylist playlist = new MediaPlaylist(url);
+        if (body.trim().startsWith("#EXTM3U"))
+            playlist.parseM3u8(body);
+        else if (body.indexOf("<MPD") >= 0)
+            playlist.parseMpd(body);
+        return playlist;
+    }
+
+    private void parseM3u8(String body)
+    {
+        live = true;
+        boolean segmentNext = false;
+        String[] lines = body.split("\r?\n");
+        for (int i = 0; i < lines.length; i++)
+        {
+            String line = lines[i].trim();
+            if (line.startsWith("#EXTINF"))
+                segmentNext = true;
+            else if (line.startsWith("#EXT-X-ENDLIST"))
+                live = false;
+            else if (line.length() > 0 && !line.startsWith("#"))
+            {
+                // URIs that don't follow an #EXTINF are variant playlists in a master playlist
+                String segment = resolve(url, line);
+                if (segmentNext && segment != null) segments.add(segment);
+                segmentNext = false;
+            }
+        }
+    }
+
+    private void parseMpd(String body)
+    {
+        String mpd = tag(body, "MPD", 0);
+        live = "dynamic".equals(attribute(mpd, "type"));
+
+        String base = url;
+        int baseIndex = body.indexOf("<BaseURL>");
+        if (baseIndex >= 0)
+        {
+            int baseEnd = body.indexOf("</BaseURL>", baseIndex);
+            if (baseEnd > 0) base = resolve(url, body.substring(baseIndex + 9, baseEnd).trim());
+            if (base == null) base = url;
+        }
+
+        List<String> representationIds = new ArrayList<String>();
+        for (int i = body.indexOf("<Representation"); i >= 0; i = body.indexOf("<Representation", i + 1))
+        {
+            String id = attribute(tag(body, "Representation", i), "id");
+            if (id != null) representationIds.add(id);
+        }
+
+        for (int i = body.indexOf("<SegmentURL"); i >= 0; i = body.indexOf("<SegmentURL", i + 1))
+        {
+            String media = attribute(tag(body, "SegmentURL", i), "media");
+            String segment = media != null ? resolve(base, media) : null;
+            if (segment != null) segments.add(segment);
+        }
+
+        for (int i = body.indexOf("<SegmentTemplate"); i >= 0; i = body.indexOf("<SegmentTemplate", i + 1))
+        {
+            String media = attribute(tag(body, "SegmentTemplate", i), "media");
+            if (media == null || media.indexOf("$Number") < 0) continue;
+
+            if (media.indexOf("$RepresentationID$") < 0)
+                addTemplate(base, media);
+            else
+            {
+                for (int j = 0; j < representationIds.size(); j++)
+                    addTemplate(base, media.replace("$RepresentationID$", representationIds.get(j)));
+            }
+        }
+    }
+
+    private void addTemplate(String base, String media)
+    {
+        // Resolve with a plain number in place, URI doesn't like the $ signs
+        int start = media.indexOf("$Number");
+        int end = media.indexOf('$', start + 1) + 1;
+        String resolved = resolve(base, media.substring(0, start) + "0123456789" + media.substring(end));
+        if (resolved != null)
+            numberTemplates.add(resolved.replace("0123456789", media.substring(start, end)));
+    }
+
+    /**
+     * Work out which segments follow a segment in this playlist.
+     *
+     * @param segmentUrl the segment the player just asked for
+     * @param count how many of the following segments to return
+     * @return URLs of up to count segments, empty if the segment isn't in this playlist
+     */
+    public List<String> getFollowing(String segmentUrl, int count)
+    {
+        List<String> following = new ArrayList<String>();
+
+        int index = segments.indexOf(segmentUrl);
+        if (index >= 0)
+        {
+            for (int i = index + 1; i < segments.size() && following.size() < count; i++)
+                following.add(segments.get(i));
+            return following;
+        }
+
+        for (int i = 0; i < numberTemplates.size(); i++)
+        {
+            String template = numberTemplates.get(i);
+            int start = template.indexOf("$Number");
+            int end = template.indexOf('$', start + 1) + 1;
+            String prefix = template.substring(0, start);
+            String suffix = template.substring(end);
+            if (!segmentUrl.startsWith(prefix) || !segmentUrl.endsWith(suffix) || segmentUrl.length() <= prefix.length() + suffix.length())
+                continue;
+
+            String number = segmentUrl.substring(prefix.length(), segmentUrl.length() - suffix.length());
+            long segmentNumber = -1;
+            try
+            {
+                segmentNumber = Long.parseLong(number);
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+
+            // $Number%05d$ pads the number with zeros
+            String format = template.substring(start + 7, end - 1);
+            if (format.length() == 0) format = "%d";
+            for (int j = 1; j <= count; j++)
+                following.add(prefix + String.format(format, segmentNumber + j) + suffix);
+            return following;
+        }
+        return following;
+    }
+
+    /**
+     * @return the segments a player that has just loaded this playlist will ask for first
+     */
+    public List<String> getFirstSegments(int count)
+    {
+        if (live)
+            return new ArrayList<String>(segments.subList(Math.max(0, segments.size() - count), segments.size()));
+        return new ArrayList<String>(segments.subList(0, Math.min(count, segments.size())));
+    }
+
+    public String getUrl()
+    {
+        return url;
+    }
+
+    public boolean isLive()
+    {
+        return live;
+    }
+
+    /**
+     * Resolve a possibly relative URL against the URL of the playlist
+     *
+     * @return the absolute URL or null if it can't be resolved
+     */
+    static String resolve(String base, String relative)
+    {
+        try
+        {
+            return new URI(base).resolve(relative.replace("&amp;", "&")).toString();
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static String tag(String body, String name, int from)
+    {
+        int start = body.indexOf("<" + name, from);
+        if (start < 0) return "";
+        int end = body.indexOf('>', start);
+        return end < 0 ? body.substring(start) : body.substring(start, end);
+    }
+
+    private static String attribute(String tag, String name)
+    {
+        int index = tag.indexOf(name + "=\"");
+        while (index > 0 && !Character.isWhitespace(tag.charAt(index - 1)))
+            index = tag.indexOf(name + "=\"", index + 1);
+        if (index < 0) return null;
+        int start = index + name.length() + 2;
+        int end = tag.indexOf('"', start);
+        return end < 0 ? null : tag.substring(start, end);
+    }
+}
@@ -0,0 +1,310 @@
+package com.outertrack.jspeedstreamer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * Writes a copy of a stream to a file on its own thread, so that a slow disk doesn't hold up the
+ * client the stream is being delivered to.
+ *
+ * The data is gathered into chunks that end on CHUNK_SIZE boundaries in the stream and the chunks
+ * are queued for the writer thread, which writes each one with a single FileChannel write at its
+ * position in the file. The queue is bounded, what happens when it is full depends on the policy:
+ *
+ * BLOCK - wait for the writer to catch up, this slows the client down to the speed of the disk
+ * SPILL - put the chunk in a temporary file instead, the writer copies it across later
+ * DROP  - give up on the archive and delete what has been written of it
+ *
+ * @author conorhunt
+ *
+ */
+public class ArchiveWriter extends Thread
+{
+    private static MultiLogger log = MultiLogger.getLogger(ArchiveWriter.class);
+
+    public static final int BLOCK = 0;
+    public static final int SPILL = 1;
+    public static final int DROP = 2;
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private File file = null;
+    private FileChannel channel = null;
+
+    private int policy = BLOCK;
+    private long maxQueued = 0;
+
+    // Chunks waiting to be written and the bytes held by them
+    private LinkedList<Chunk> queue = new LinkedList<Chunk>();
+    private long queuedBytes = 0;
+
+    // Chunks that didn't fit in the queue with the SPILL policy. Their data is in the spill file.
+    private LinkedList<Chunk> spilled = new LinkedList<Chunk>();
+    private File spillFile = null;
+    private FileChannel spillChannel = null;
+    private long spillLength = 0;
+
+    // The chunk being filled and the stream position of the next byte written
+    private Chunk current = null;
+    private long position = 0;
+
+    private boolean closed = false;
+    private volatile boolean dropped = false;
+
+    /**
+     * @param fileName
+     * @param startPosition position in the stream of the first byte that will be written
+     * @param contentLength length of the whole stream, if it is known and preallocate is set the file
+     *            is made that long straight away
+     * @param maxQueued number of bytes that can be waiting for the disk
+     * @param policy what to do when the queue is full, BLOCK, SPILL or DROP
+     * @param preallocate
+     * @throws IOException
+     */
+    public ArchiveWriter(String fileName, long startPosition, long contentLength, long maxQueued, int policy, boolean preallocate) throws IOException
+    {
+        this.file = new File(fileName);
+        this.position = startPosition;
+        this.maxQueued = maxQueued;
+        this.policy = policy;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        if (preallocate && contentLength > 0)
+            raf.setLength(startPosition + contentLength);
+        channel = raf.getChannel();
+    }
+
+    /**
+     * @param name block, spill or drop
+     * @return the policy, BLOCK if the name isn't known
+     */
+    public static int getPolicy(String name)
+    {
+        if ("spill".equalsIgnoreCase(name)) return SPILL;
+        if ("drop".equalsIgnoreCase(name)) return DROP;
+        return BLOCK;
+    }
+
+    /**
+     * Add the next bytes of the stream to the archive
+     *
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void write(byte[] data, int offset, int length)
+    {
+        while (length > 0 && !dropped)
+        {
+            if (current == null)
+            {
+                long chunkEnd = (position / CHUNK_SIZE + 1) * CHUNK_SIZE;
+                current = new Chunk(position, new byte[(int) (chunkEnd - position)]);
+            }
+
+            int count = Math.min(length, current.data.length - current.length);
+            System.arraycopy(data, offset, current.data, current.length, count);
+            current.length += count;
+            position += count;
+            offset += count;
+            length -= count;
+
+            if (current.length == current.data.length)
+            {
+                queue(current);
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Add the bytes in the buffers to the archive, the buffers are left as they are
+     *
+     * @param regions
+     */
+    public void write(ByteBuffer[] regions)
+    {
+        for (int i = 0; i < regions.length; i++)
+            write(regions[i].array(), regions[i].arrayOffset() + regions[i].position(), regions[i].remaining());
+    }
+
+    /**
+     * No more data is coming. This doesn't wait, the writer thread finishes writing what is queued
+     * and then closes the file.
+     */
+    public void close()
+    {
+        if (current != null && current.length > 0)
+            queue(current);
+        current = null;
+
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    public boolean isDropped()
+    {
+        return dropped;
+    }
+
+    private void queue(Chunk chunk)
+    {
+        synchronized (this)
+        {
+            // A chunk always goes in when the queue is empty, even if it is bigger than the limit
+            while (!dropped && policy == BLOCK && !queue.isEmpty() && queuedBytes + chunk.length > maxQueued)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+            if (dropped) return;
+
+            if (queue.isEmpty() || queuedBytes + chunk.length <= maxQueued)
+            {
+                queue.add(chunk);
+                queuedBytes += chunk.length;
+                notifyAll();
+                return;
+            }
+
+            if (policy == DROP)
+            {
+                drop("queue full");
+                return;
+            }
+        }
+
+        // Spilling writes to disk too, but not with the lock held so the writer thread can carry on
+        try
+        {
+            spill(chunk);
+        }
+        catch (IOException e)
+        {
+            drop("spill failed " + e);
+        }
+    }
+
+    private void spill(Chunk chunk) throws IOException
+    {
+        if (spillChannel == null)
+        {
+            spillFile = File.createTempFile("jspeedstreamer", ".spill");
+            spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+        }
+
+        ByteBuffer data = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+        long offset = spillLength;
+        while (data.hasRemaining())
+            spillChannel.write(data, offset + data.position());
+        spillLength += chunk.length;
+
+        synchronized (this)
+        {
+            chunk.data = null;
+            chunk.spillOffset = offset;
+            spilled.add(chunk);
+            notifyAll();
+        }
+    }
+
+    private synchronized void drop(String reason)
+    {
+        if (dropped) return;
+        log.debug("Archive - dropping " + file + ": " + reason);
+        dropped = true;
+        queue.clear();
+        spilled.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                Chunk chunk = null;
+                synchronized (this)
+                {
+                    while (!dropped && !closed && queue.isEmpty() && spilled.isEmpty())
+                        wait();
+                    if (dropped || (queue.isEmpty() && spilled.isEmpty())) break;
+
+                    chunk = queue.isEmpty() ? spilled.removeFirst() : queue.removeFirst();
+                }
+
+                if (chunk.data != null)
+                {
+                    ByteBuffer data = ByteBuffer.wrap(chunk.data, 0, chunk.length);
+                    while (data.hasRemaining())
+                        channel.write(data, chunk.position + data.position());
+                }
+                else
+                {
+                    long copied = 0;
+                    while (copied < chunk.length)
+                    {
+                        spillChannel.position(chunk.spillOffset + copied);
+                        copied += channel.transferFrom(spillChannel, chunk.position + copied, chunk.length - copied);
+                    }
+                }
+
+                synchronized (this)
+                {
+                    if (chunk.data != null) queuedBytes -= chunk.length;
+                    notifyAll();
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            drop("write failed " + e);
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+                if (spillChannel != null) spillChannel.close();
+            }
+            catch (IOException e)
+            {}
+            if (spillFile != null) spillFile.delete();
+            if (dropped) file.delete();
+        }
+        log.debug("Archive - finished " + file);
+    }
+
+    /**
+     * Part of the stream waiting to be written
+     */
+    private static class Chunk
+    {
+        long position = 0;
+        byte[] data = null;
+        int length = 0;
+        long spillOffset = 0;
+
+        Chunk(long position, byte[] data)
+        {
+            this.position = position;
+            this.data = data;
+        }
+    }
+}
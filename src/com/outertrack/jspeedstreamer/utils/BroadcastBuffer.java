@@ -0,0 +1,167 @@
+package com.outertrack.jspeedstreamer.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A circular download buffer that several clients read from at once, each with its own read
+ * position. This lets one set of download threads feed every client watching the same stream.
+ *
+ * The window only moves along the stream as fast as the slowest reader, so writers can't overwrite
+ * data that any reader still needs. To stop one slow client from holding back everybody else, a
+ * reader that stays more than maxLag bytes behind the fastest one is detached and has to get the
+ * rest of the stream some other way.
+ *
+ * There is no reading from the buffer itself, only through a Reader, so nothing else can move the
+ * window past a reader.
+ *
+ * @author conorhunt
+ *
+ */
+public class BroadcastBuffer extends DownloadBuffer
+{
+    private static MultiLogger log = MultiLogger.getLogger(BroadcastBuffer.class);
+
+    private List<Reader> readers = new ArrayList<Reader>();
+
+    private long maxLag = 0;
+
+    // Data arrives in bursts when blocks complete, so a reader is only detached once it has been too far
+    // behind for this long. Otherwise whichever reader woke up first would push the others out.
+    private static final long LAG_GRACE = 2000;
+
+    public BroadcastBuffer(int size, long maxLag)
+    {
+        super(size);
+        this.maxLag = Math.min(maxLag, size);
+    }
+
+    /**
+     * Attach a new reader. It starts at the start of the window, which is where the slowest reader is.
+     *
+     * @param fromStartOnly only attach if the window is still at the start of the stream
+     * @return the reader, or null if it can't be attached
+     */
+    public synchronized Reader attach(boolean fromStartOnly)
+    {
+        if (finished || (fromStartOnly && streamReadPosition > 0)) return null;
+        
+        Reader reader = new Reader(streamReadPosition);
+        readers.add(reader);
+        return reader;
+    }
+
+    public synchronized int getReaderCount()
+    {
+        return readers.size();
+    }
+
+    /**
+     * Called when a reader has moved. Readers that are too far behind are detached and then the
+     * window is moved up to the slowest of the readers that are left.
+     */
+    private synchronized void readerMoved()
+    {
+        long fastest = streamReadPosition;
+        for (int i = 0; i < readers.size(); i++)
+            fastest = Math.max(fastest, readers.get(i).position);
+
+        long slowest = fastest;
+        for (int i = readers.size() - 1; i >= 0; i--)
+        {
+            Reader reader = readers.get(i);
+            if (fastest - reader.position <= maxLag)
+                reader.laggingSince = 0;
+            else if (reader.laggingSince == 0)
+                reader.laggingSince = System.currentTimeMillis();
+
+            if (reader.laggingSince > 0 && System.currentTimeMillis() - reader.laggingSince > LAG_GRACE)
+            {
+                log.debug("Broadcast - detaching reader " + (fastest - reader.position) + " bytes behind");
+                reader.detached = true;
+                readers.remove(i);
+            }
+            else
+                slowest = Math.min(slowest, reader.position);
+        }
+
+        // With nobody left there is nothing to move the window for
+        if (!readers.isEmpty() && slowest > streamReadPosition)
+            moveWindow(slowest);
+    }
+
+    private synchronized void detach(Reader reader)
+    {
+        reader.detached = true;
+        readers.remove(reader);
+        readerMoved();
+    }
+
+    /**
+     * One client's position in the stream
+     *
+     * @author conorhunt
+     *
+     */
+    public class Reader
+    {
+        private volatile long position = 0;
+        private volatile boolean detached = false;
+        private long laggingSince = 0;
+
+        private Reader(long position)
+        {
+            this.position = position;
+        }
+
+        /**
+         * Read the next bytes for this reader, waiting for them if they aren't ready
+         *
+         * @param output
+         * @param maxReadLength
+         * @return the number of bytes read, or -1 if the reader has been detached or the buffer has quit
+         */
+        public int read(byte[] output, int maxReadLength)
+        {
+            while (!finished && !detached && (!isReady((int) (position % bufferSize))
+                    || !isReady((int) ((position + maxReadLength - 1) % bufferSize))))
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e)
+                {}
+            }
+            if (detached) return -1;
+
+            int counter = copyOut((int) (position % bufferSize), output, maxReadLength);
+
+            // The window can't have moved past our position so the bytes can't have been overwritten
+            // while we copied them, but another reader may have pushed us out for being too slow
+            if (detached || (finished && counter == 0)) return -1;
+
+            position += counter;
+            readerMoved();
+            return counter;
+        }
+
+        /**
+         * Stop reading, the window no longer waits for this reader
+         */
+        public void detach()
+        {
+            BroadcastBuffer.this.detach(this);
+        }
+
+        public long getPosition()
+        {
+            return position;
+        }
+
+        public boolean isDetached()
+        {
+            return detached;
+        }
+    }
+}
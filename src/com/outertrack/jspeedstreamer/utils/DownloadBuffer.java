@@ -0,0 +1,289 @@
+package com.outertrack.jspeedstreamer.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The part of a circular download buffer that is the same however it is read: a 'window' into a
+ * larger stream of data that the download threads write into. How the window is moved along is up to
+ * the subclass, CircularDownloadBuffer has a single reader and BroadcastBuffer has several.
+ * 
+ * There is a fixed size byte buffer allocated internally and all data is read and written to this
+ * buffer.
+ * 
+ * There are no locks. Writers always write to different parts of the stream so they can't get in each
+ * other's way, and they publish the bytes they have written by setting bits in an atomic bitmap. The
+ * reader copies out the run of set bits at its position and clears them before moving the window on.
+ * 
+ * @author conorhunt
+ * 
+ */
+public abstract class DownloadBuffer
+{
+    // buffer to hold data
+    protected int bufferSize = 6000000;
+    protected byte[] buffer = null;
+    
+    // Bitmap that keeps track of whether bytes in the buffer are ready to read or not, one bit per byte
+    private AtomicLongArray writeRecord = null;
+    
+    // Current count of the total bytes read out, the start of the window. Only moveWindow() changes it.
+    protected volatile long streamReadPosition = 0;
+    
+    // Current read position in the circular buffer, this is always streamReadPosition % bufferSize
+    protected int bufferReadPosition = 0;
+
+    protected volatile boolean finished = false;
+    
+    // Set while the reader is waiting for data that hasn't arrived
+    protected volatile boolean readerWaiting = false;
+
+    protected DownloadBuffer()
+    {
+        buffer = new byte[bufferSize];
+        writeRecord = new AtomicLongArray(bufferSize / 64 + 1);
+    }
+    
+    protected DownloadBuffer(int size)
+    {
+        this(size, 0);
+    }
+    
+    /**
+     * @param size
+     * @param startPosition position in the stream that the first byte read will come from
+     */
+    protected DownloadBuffer(int size, long startPosition)
+    {
+        buffer = new byte[size];
+        writeRecord = new AtomicLongArray(size / 64 + 1);
+        bufferSize = size;
+        streamReadPosition = startPosition;
+        bufferReadPosition = (int) (startPosition % size);
+    }
+    
+    public void quit()
+    {
+        finished = true;
+    }
+
+    /**
+     * @return the position in the stream up to which the reader has read
+     */
+    public long getStreamReadPosition()
+    {
+        return streamReadPosition;
+    }
+
+    protected ProxyEvents.ReadStall beginReadStall()
+    {
+        readerWaiting = true;
+        ProxyEvents.ReadStall stall = new ProxyEvents.ReadStall();
+        stall.position = streamReadPosition;
+        stall.begin();
+        return stall;
+    }
+
+    /**
+     * @return true if the reader is waiting for data to arrive
+     */
+    public boolean isReaderWaiting()
+    {
+        return readerWaiting;
+    }
+
+    /**
+     * Copy as many bytes as are ready starting at startPos in the buffer into output
+     * 
+     * @return the number of bytes copied
+     */
+    protected int copyOut(int startPos, byte[] output, int maxReadLength)
+    {
+        int counter = readyLength(startPos, maxReadLength);
+        
+        // Get as many bytes as are ready and read them into the output buffer
+        if (startPos + counter >= bufferSize)
+        {
+            // If the bytes we read goes over the end of the buffer then we need to split the
+            // array copy into two to handle the wrap around
+            int bytesToEnd = bufferSize - startPos;
+            System.arraycopy(buffer, startPos, output, 0, bytesToEnd);
+            System.arraycopy(buffer, 0, output, bytesToEnd, counter - bytesToEnd);
+        }
+        else
+        {
+            System.arraycopy(buffer, startPos, output, 0, counter);
+        }
+        return counter;
+    }
+    
+    /**
+     * Move the start of the window along the stream. The bytes it moves past are marked as free for
+     * writing first, only then is the window moved, which is what lets writers use the space.
+     * 
+     * @param newStreamReadPosition
+     */
+    protected void moveWindow(long newStreamReadPosition)
+    {
+        setRecord(bufferReadPosition, (int) (newStreamReadPosition - streamReadPosition), false);
+        bufferReadPosition = (int) (newStreamReadPosition % bufferSize);
+        streamReadPosition = newStreamReadPosition;
+    }
+
+    public void write(byte newBytes[], int byteCount, long streamWritePosition)
+    {
+        write(newBytes, 0, byteCount, streamWritePosition);
+    }
+
+    /**
+     * Write byteCount bytes starting at offset in newBytes to the given position in the stream
+     */
+    public void write(byte newBytes[], int offset, int byteCount, long streamWritePosition)
+    {
+        // The write is split in two if it goes over the end of the buffer
+        while (byteCount > 0)
+        {
+            ByteBuffer region = getWriteRegion(streamWritePosition, byteCount);
+            if (region == null) return;
+            
+            int length = region.remaining();
+            System.arraycopy(newBytes, offset, buffer, region.position(), length);
+            commit(streamWritePosition, length);
+            
+            offset += length;
+            byteCount -= length;
+            streamWritePosition += length;
+        }
+    }
+
+    /**
+     * Get the part of the buffer that holds a position in the stream so that data can be read
+     * straight into it, without copying it through another array first. Call commit() once the data
+     * is there to make it readable.
+     * 
+     * The region stops at the end of the buffer, so it can be shorter than maxLength when the
+     * position is near the wrap around.
+     * 
+     * @param streamWritePosition
+     * @param maxLength
+     * @return a ByteBuffer over the region, its position is the offset into the buffer's array. null if
+     *         the buffer has quit.
+     */
+    public ByteBuffer getWriteRegion(long streamWritePosition, int maxLength)
+    {
+        // Check that there are enough free bytes in the buffer to write the data
+        ProxyEvents.WriteWait wait = null;
+        while (finished != true && streamWritePosition + maxLength >= streamReadPosition + bufferSize)
+        {
+            if (wait == null)
+            {
+                wait = new ProxyEvents.WriteWait();
+                wait.position = streamWritePosition;
+                wait.readPosition = streamReadPosition;
+                wait.begin();
+            }
+            
+            // If there are not enough free bytes then we pause until the buffer
+            // window has moved along the stream and there is space at the end of the buffer
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+        if (wait != null) wait.commit();
+        if (finished) return null;
+        
+        int writePosition = writePosition(streamWritePosition);
+        return ByteBuffer.wrap(buffer, writePosition, Math.min(maxLength, bufferSize - writePosition));
+    }
+
+    /**
+     * Mark data that has been put into a region from getWriteRegion() as ready for reading
+     * 
+     * @param streamWritePosition position in the stream the region was got for
+     * @param byteCount number of bytes that were written
+     */
+    public void commit(long streamWritePosition, int byteCount)
+    {
+        // Setting the bits is atomic so this doesn't need a lock, it also makes the bytes written
+        // into the region visible to the reader
+        setRecord(writePosition(streamWritePosition), byteCount, true);
+    }
+
+    private int writePosition(long streamWritePosition)
+    {
+        // Calculate where we should be writing into the buffer
+        // Explanation:
+        // Think of the buffer as a sliding window that keeps moving along the stream
+        // 1. As we read bytes from the stream the streamReadPosition increases (the start of the window)
+        // 2. The position in the stream that we want to write to is streamWritePosition. So we know that
+        // the index into our window (the buffer) is streamWritePosition - streamReadPosition.
+        // 3. This is a circular buffer. The start of the buffer is at the position that we are 
+        // reading bytes from, so in order to get the position into the buffer that we want to
+        // write the bytes to we add the bufferReadPosition to the position calculated in step 2.
+        // 4. Since this is a circular buffer this resulting position can be greater than the size of 
+        // the buffer and so we wrap it by doing % BUFFER_SIZE
+        // The bufferReadPosition is always streamReadPosition % bufferSize, so all of that comes down to
+        // streamWritePosition % bufferSize, which doesn't depend on the reader at all.
+        return (int) (streamWritePosition % bufferSize);
+    }
+    
+    protected boolean isReady(int index)
+    {
+        return (writeRecord.get(index >>> 6) & (1L << (index & 63))) != 0;
+    }
+    
+    /**
+     * Counts the ready bytes starting at index, going round the end of the buffer if need be
+     * 
+     * @return the number of bytes up to the first one that isn't ready, at most maxLength
+     */
+    protected int readyLength(int index, int maxLength)
+    {
+        int length = 0;
+        while (length < maxLength)
+        {
+            int bit = index & 63;
+            long ready = ~(writeRecord.get(index >>> 6) >>> bit);
+            int run = ready == 0 ? 64 - bit : Math.min(Long.numberOfTrailingZeros(ready), 64 - bit);
+            run = Math.min(run, bufferSize - index);
+            
+            length += run;
+            if (run < 64 - bit && index + run < bufferSize) break;
+            
+            index += run;
+            if (index >= bufferSize) index = 0;
+        }
+        return Math.min(length, maxLength);
+    }
+    
+    /**
+     * Set or clear the ready bits of byteCount bytes starting at index, going round the end of the
+     * buffer if need be. Other threads can be changing other bits in the same words so each word is
+     * updated with compare and set.
+     */
+    private void setRecord(int index, int byteCount, boolean ready)
+    {
+        while (byteCount > 0)
+        {
+            int bit = index & 63;
+            int count = Math.min(Math.min(64 - bit, byteCount), bufferSize - index);
+            long mask = (count == 64 ? -1L : ((1L << count) - 1)) << bit;
+            
+            int word = index >>> 6;
+            long old;
+            do
+            {
+                old = writeRecord.get(word);
+            } while (!writeRecord.compareAndSet(word, old, ready ? old | mask : old & ~mask));
+            
+            byteCount -= count;
+            index += count;
+            if (index >= bufferSize) index = 0;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.outertrack.jspeedstreamer.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for what the proxy is doing, so that stalls can be lined up with GC
+ * and I/O in the same recording.
+ *
+ * The events are only filled in when isEnabled() says they are being recorded, when no recording is
+ * running the JIT removes them.
+ *
+ * @author conorhunt
+ *
+ */
+public class ProxyEvents
+{
+    @Name("jspeedstreamer.SegmentAssigned")
+    @Label("Segment Assigned")
+    @Category("JSpeedStreamer")
+    @Description("A download thread was given a block of the stream")
+    public static class SegmentAssigned extends Event
+    {
+        @Label("Start")
+        public long start;
+
+        @Label("End")
+        public long end;
+
+        @Label("Ranges")
+        @Description("Number of ranges, more than one for a multi range request")
+        public int ranges;
+
+        @Label("Retry")
+        @Description("The block went missing before and is being fetched again")
+        public boolean retry;
+    }
+
+    @Name("jspeedstreamer.SegmentRequest")
+    @Label("Segment Request")
+    @Category("JSpeedStreamer")
+    @Description("From sending a range request to the response headers arriving")
+    public static class SegmentRequest extends Event
+    {
+        @Label("Origin")
+        public String origin;
+
+        @Label("Start")
+        public long start;
+
+        @Label("End")
+        public long end;
+
+        @Label("Response Code")
+        public int responseCode;
+    }
+
+    @Name("jspeedstreamer.SegmentAttempt")
+    @Label("Segment Attempt")
+    @Category("JSpeedStreamer")
+    @Description("One attempt at downloading a block, it either completes the block or is retried")
+    public static class SegmentAttempt extends Event
+    {
+        @Label("Start")
+        public long start;
+
+        @Label("End")
+        public long end;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Completed")
+        public boolean completed;
+
+        @Label("Failures")
+        @Description("Failed attempts in a row before this one, the block is given back after too many")
+        public int failures;
+    }
+
+    @Name("jspeedstreamer.ReadStall")
+    @Label("Buffer Read Stall")
+    @Category("JSpeedStreamer")
+    @Description("The client waited for data that hadn't been downloaded yet")
+    public static class ReadStall extends Event
+    {
+        @Label("Stream Position")
+        public long position;
+    }
+
+    @Name("jspeedstreamer.WriteWait")
+    @Label("Buffer Write Wait")
+    @Category("JSpeedStreamer")
+    @Description("A download thread waited for the client to make space in the buffer")
+    public static class WriteWait extends Event
+    {
+        @Label("Stream Position")
+        public long position;
+
+        @Label("Client Position")
+        public long readPosition;
+    }
+
+    @Name("jspeedstreamer.ClientSession")
+    @Label("Client Session")
+    @Category("JSpeedStreamer")
+    @Description("A split download delivered to a client")
+    public static class ClientSession extends Event
+    {
+        @Label("URL")
+        public String url;
+
+        @Label("Content Length")
+        @DataAmount
+        public long contentLength;
+
+        @Label("Bytes Sent")
+        @DataAmount
+        public long bytesSent;
+
+        @Label("Threads")
+        public int threads;
+
+        @Label("Broadcast")
+        public boolean broadcast;
+    }
+}
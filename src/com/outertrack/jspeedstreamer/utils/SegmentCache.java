@@ -0,0 +1,175 @@
+package com.outertrack.jspeedstreamer.utils;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in memory cache of small responses (media segments). It is shared by all of the proxy threads.
+ * The keys are up to the caller, SegmentPrefetcher uses the URL and who the client is.
+ *
+ * A key can be reserved before it is fetched so that it isn't fetched twice, and a proxy thread
+ * asking for a reserved key waits for it to arrive rather than going to the server itself.
+ *
+ * A response is only served once, it is dropped when it is handed out. Responses that nobody asks
+ * for are dropped when they expire, and the least recently used ones are thrown away once the cache
+ * is over its size limit.
+ *
+ * @author conorhunt
+ *
+ */
+public class SegmentCache
+{
+    private static MultiLogger log = MultiLogger.getLogger(SegmentCache.class);
+
+    private long maxBytes = 0;
+    private long cachedBytes = 0;
+
+    // Cached responses in least recently used order
+    private LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+
+    // URLs that are being fetched right now
+    private HashSet<String> pending = new HashSet<String>();
+
+    public SegmentCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Reserve a URL before fetching it.
+     *
+     * @param url
+     * @return false if the URL is already cached or being fetched
+     */
+    public synchronized boolean reserve(String url)
+    {
+        removeExpired();
+        if (entries.containsKey(url) || pending.contains(url)) return false;
+        pending.add(url);
+        return true;
+    }
+
+    /**
+     * Store the response for a URL, evicting old responses if the cache is full
+     *
+     * @param url
+     * @param headers
+     * @param body
+     * @param ttl how long the response can be kept in milliseconds
+     */
+    public synchronized void put(String url, byte[] headers, byte[] body, long ttl)
+    {
+        pending.remove(url);
+
+        CachedResponse old = entries.remove(url);
+        if (old != null) cachedBytes -= old.getSize();
+
+        CachedResponse response = new CachedResponse(headers, body, System.currentTimeMillis() + ttl);
+        entries.put(url, response);
+        cachedBytes += response.getSize();
+
+        Iterator<Map.Entry<String, CachedResponse>> it = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && it.hasNext())
+        {
+            Map.Entry<String, CachedResponse> eldest = it.next();
+            cachedBytes -= eldest.getValue().getSize();
+            it.remove();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Give up on a reserved URL, anyone waiting on it will go to the server instead
+     */
+    public synchronized void cancel(String url)
+    {
+        pending.remove(url);
+        notifyAll();
+    }
+
+    /**
+     * Get a cached response. If the URL is being fetched this waits for it.
+     *
+     * @param url
+     * @param waitMillis maximum time to wait for a pending URL
+     * @return the response or null if it isn't cached
+     */
+    public synchronized CachedResponse get(String url, long waitMillis)
+    {
+        long giveUpTime = System.currentTimeMillis() + waitMillis;
+        while (pending.contains(url))
+        {
+            long remaining = giveUpTime - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+        }
+
+        removeExpired();
+        CachedResponse response = entries.remove(url);
+        if (response != null)
+        {
+            cachedBytes -= response.getSize();
+            log.debug("Cache hit " + url);
+        }
+        return response;
+    }
+
+    private void removeExpired()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<CachedResponse> it = entries.values().iterator();
+        while (it.hasNext())
+        {
+            CachedResponse response = it.next();
+            if (response.expires > now) continue;
+            cachedBytes -= response.getSize();
+            it.remove();
+        }
+    }
+
+    /**
+     * Response headers and body of a cached URL
+     */
+    public static class CachedResponse
+    {
+        private byte[] headers = null;
+        private byte[] body = null;
+        private long expires = 0;
+
+        public CachedResponse(byte[] headers, byte[] body, long expires)
+        {
+            this.headers = headers;
+            this.body = body;
+            this.expires = expires;
+        }
+
+        public byte[] getHeaders()
+        {
+            return headers;
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+
+        public int getSize()
+        {
+            return headers.length + body.length;
+        }
+    }
+}
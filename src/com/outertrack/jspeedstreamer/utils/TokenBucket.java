@@ -0,0 +1,101 @@
+package com.outertrack.jspeedstreamer.utils;
+
+/**
+ * Limits the rate of a transfer. Tokens (bytes) are added at a fixed rate up to half a second's
+ * worth and a transfer waits until there are enough of them.
+ *
+ * Buckets form a tree, taking from a bucket also takes from all of its parents, so a session's
+ * bucket can sit under an origin's bucket which sits under a global one. A bucket with a rate of 0
+ * doesn't limit anything but its parents still do.
+ *
+ * @author conorhunt
+ *
+ */
+public class TokenBucket
+{
+    // The smallest burst allowed, so that a full read of a socket buffer can always go through
+    private static final long MIN_CAPACITY = 65536;
+
+    private long rate = 0;
+    private long capacity = 0;
+    private double tokens = 0;
+    private long lastRefill = System.currentTimeMillis();
+
+    private TokenBucket parent = null;
+
+    /**
+     * @param rate bytes per second, 0 for no limit
+     * @param parent bucket that is also taken from, or null
+     */
+    public TokenBucket(long rate, TokenBucket parent)
+    {
+        this.rate = rate;
+        this.parent = parent;
+        this.capacity = Math.max(rate / 2, MIN_CAPACITY);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Wait until count bytes can be transferred and take the tokens for them. A bucket can go into
+     * debt for a large count, the transfers after it then wait for it to be paid off.
+     *
+     * @param count
+     * @param borrow if this bucket is empty take only from the parents, using capacity that they
+     *            have spare. For transfers that something is stalled waiting on.
+     */
+    public void take(int count, boolean borrow)
+    {
+        while (true)
+        {
+            long wait = takeChain(count, borrow, System.currentTimeMillis());
+            if (wait == 0) return;
+
+            try
+            {
+                Thread.sleep(Math.min(wait, 200));
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take count tokens from this bucket and all of its parents, or from none of them. Each bucket
+     * is locked before its parent and held until the parent has answered, so the whole chain is
+     * taken from at once. Locks are always taken from the leaf up, so chains can't deadlock, and
+     * buckets without a limit aren't locked at all.
+     *
+     * @return 0 if the tokens were taken, otherwise how long to wait before trying again
+     */
+    private long takeChain(int count, boolean borrow, long now)
+    {
+        if (rate <= 0)
+            return parent != null ? parent.takeChain(count, false, now) : 0;
+
+        synchronized (this)
+        {
+            refill(now);
+            boolean enough = tokens >= Math.min(count, capacity);
+            if (!enough && !borrow)
+                return (long) ((Math.min(count, capacity) - tokens) * 1000 / rate) + 1;
+
+            long wait = parent != null ? parent.takeChain(count, false, now) : 0;
+            if (wait == 0 && enough) tokens -= count;
+            return wait;
+        }
+    }
+
+    private void refill(long now)
+    {
+        if (rate <= 0) return;
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000.0);
+        lastRefill = now;
+    }
+
+    public long getRate()
+    {
+        return rate;
+    }
+}